@@ -16,11 +16,15 @@
  */
 package be.ugent.intec.halvade;
 
+import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
 import be.ugent.intec.halvade.utils.ChromosomeSplitter;
 import be.ugent.intec.halvade.utils.Logger;
 import be.ugent.intec.halvade.utils.HalvadeConf;
-import java.io.EOFException;
+import be.ugent.intec.halvade.utils.ReferenceGaps;
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.DecimalFormat;
@@ -37,7 +41,6 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -62,6 +65,17 @@ public class HalvadeOptions {
     public int nodes, vcores;
     public double mem;
     public int maps = 1, reduces = 1, mthreads = 1, rthreads = 1;
+    public int estimatedReduces = 1;
+    public int sampleReads = 0;
+    public int regionsPerReducer = 1;
+    public boolean snapRegions = false;
+    public double hotRegionFactor = 0;
+    public int hotRegionOverlap = 500;
+    public double replanFactor = 0;
+    public int replanParts = 8;
+    public int samParseThreads = 0;
+    public long splitSize = 0;
+    public int refCacheSize = 0;
     public String[] hdfsSites;
     public boolean paired = true;
     public int aln = 0;
@@ -80,6 +94,8 @@ public class HalvadeOptions {
     public String RGPU = "UNIT1";
     public String RGSM = "SAMPLE1";
     public boolean useElPrep = true;
+    public boolean useBamStream = false;
+    public boolean combineSplits = false;
     public boolean keepFiles = false;
     public int stand_call_conf = -1;
     public int stand_emit_conf = -1;
@@ -114,6 +130,8 @@ public class HalvadeOptions {
     protected static final double DEFAULT_COVERAGE = 50;
     protected static final double DEFAULT_COVERAGE_SIZE = 86;
     protected static final String DICT_SUFFIX = ".dict";
+    protected static final String FASTA_SUFFIX = ".fasta";
+    protected static final double SNAP_TOLERANCE = 0.1;
 
     public int GetOptions(String[] args, Configuration hConf) throws IOException, URISyntaxException {
         try {
@@ -132,6 +150,7 @@ public class HalvadeOptions {
             }
             HalvadeConf.setScratchTempDir(hConf, tmpDir);
             HalvadeConf.setRefDirOnScratch(hConf, localRefDir);
+            HalvadeConf.setRefCacheSize(hConf, refCacheSize);
             HalvadeConf.setRefOnHDFS(hConf, ref);
             if (STARGenome != null) {
                 HalvadeConf.setStarDirOnHDFS(hConf, STARGenome);
@@ -151,10 +170,14 @@ public class HalvadeOptions {
             HalvadeConf.setFilterDBSnp(hConf, filterDBSnp);
             HalvadeConf.clearTaskFiles(hConf);
             HalvadeConf.setUseElPrep(hConf, useElPrep);
+            HalvadeConf.setUseBamStream(hConf, useBamStream);
             HalvadeConf.setUseUnifiedGenotyper(hConf, useGenotyper);
             HalvadeConf.setRedistribute(hConf, redistribute);
             HalvadeConf.setReadGroup(hConf, "ID:" + RGID + " LB:" + RGLB + " PL:" + RGPL + " PU:" + RGPU + " SM:" + RGSM);
             HalvadeConf.setkeepChrSplitPairs(hConf, keepChrSplitPairs);
+            if (samParseThreads > 0) {
+                HalvadeConf.setSamParseThreads(hConf, samParseThreads);
+            }
             if (STARGenome != null) {
                 HalvadeConf.setStarDirPass2HDFS(hConf, out);
             }
@@ -183,21 +206,9 @@ public class HalvadeOptions {
             }
             Logger.DEBUG("Estimated coverage: " + roundOneDecimal(coverage));
             // set a minimum first where the real amount is based on
-            reduces = (int) (coverage * REDUCE_TASKS_FACTOR);
-            Logger.DEBUG("estimated # reducers: " + reduces);
-            ChromosomeSplitter splitter;
-            if(bedFile != null)
-                splitter = new ChromosomeSplitter(dict, bedFile, reduces);
-            else if (readCountsPerRegionFile != null)
-                splitter = new ChromosomeSplitter(dict, readCountsPerRegionFile, reduces, reorderRegions);
-            else
-                splitter = new ChromosomeSplitter(dict, reduces);
-            
-            String bedRegions = out + "HalvadeRegions.bed";
-            splitter.exportSplitter(bedRegions, hConf);
-            reduces = splitter.getRegionCount();
-            Logger.DEBUG("actual # reducers: " + reduces);
-            HalvadeConf.setBedRegions(hConf, bedRegions);
+            estimatedReduces = (int) (coverage * REDUCE_TASKS_FACTOR);
+            Logger.DEBUG("estimated # reducers: " + estimatedReduces);
+            makeRegions(hConf);
 
         } catch (ParseException e) {
             Logger.DEBUG(e.getMessage());
@@ -210,6 +221,76 @@ public class HalvadeOptions {
         return 0;
     }
 
+    protected void makeRegions(Configuration hConf) throws ParseException, IOException, URISyntaxException {
+        // more regions than reducers lets the reducer table even out the cost per reducer
+        int regionCount = estimatedReduces * regionsPerReducer;
+        ChromosomeSplitter splitter;
+        if(bedFile != null)
+            splitter = new ChromosomeSplitter(dict, bedFile, regionCount);
+        else if (readCountsPerRegionFile != null)
+            splitter = new ChromosomeSplitter(dict, readCountsPerRegionFile, regionCount, reorderRegions);
+        else
+            splitter = new ChromosomeSplitter(dict, regionCount);
+        // only split when asked, this also changes the regions of a bed file
+        if(hotRegionFactor > 0) {
+            int added = splitter.splitHotRegions(readCountsPerRegionFile, hotRegionFactor, hotRegionOverlap);
+            if(added > 0)
+                Logger.DEBUG("split regions with more than " + hotRegionFactor + " times the average cost, " + added + " regions added");
+        }
+        if(snapRegions && bedFile == null)
+            snapBoundaries(splitter, hConf);
+
+        int regions = splitter.getRegionCount();
+        if(regions > ChromosomeRegion.MAX_REGIONS || dict.size() > ChromosomeRegion.MAX_CHROMOSOMES)
+            throw new ParseException("the shuffle key supports at most " + ChromosomeRegion.MAX_REGIONS + " regions and " 
+                    + ChromosomeRegion.MAX_CHROMOSOMES + " contigs, found " + regions + " regions and " + dict.size() + " contigs.");
+        reduces = Math.max(1, (regions + regionsPerReducer - 1) / regionsPerReducer);
+        Logger.DEBUG("actual # reducers: " + reduces + " for " + regions + " regions");
+        splitter.makeReducerTable(reduces, readCountsPerRegionFile);
+        String bedRegions = out + ChromosomeSplitter.SPLITTER_FILE;
+        splitter.exportSplitter(bedRegions, hConf);
+        HalvadeConf.setBedRegions(hConf, bedRegions);
+    }
+    
+    /**
+     * moves the region boundaries to a run of N in the reference or a position with few reads,
+     * without the fasta index only the read counts are used
+     */
+    protected void snapBoundaries(ChromosomeSplitter splitter, Configuration hConf) throws IOException, URISyntaxException {
+        ReferenceGaps gaps = null;
+        try {
+            FileSystem fs = FileSystem.get(new URI(ref + FASTA_SUFFIX), hConf);
+            gaps = new ReferenceGaps(fs, ref + FASTA_SUFFIX);
+        } catch (IOException ex) {
+            Logger.DEBUG("runs of N in the reference are not used: " + ex.getLocalizedMessage());
+        }
+        try {
+            splitter.snapBoundaries(gaps, readCountsPerRegionFile, SNAP_TOLERANCE);
+        } finally {
+            if(gaps != null)
+                gaps.close();
+        }
+    }
+    
+    /**
+     * makes the regions again with the read counts of the sample job, 
+     * the counts file is read from local disk
+     */
+    public void makeRegionsFromReadCounts(Configuration hConf, String readCounts) throws IOException, URISyntaxException {
+        File localCounts = File.createTempFile("halvade_read_counts", ".txt");
+        try {
+            FileSystem fs = FileSystem.get(new URI(readCounts), hConf);
+            fs.copyToLocalFile(new Path(readCounts), new Path(localCounts.getAbsolutePath()));
+            readCountsPerRegionFile = localCounts.getAbsolutePath();
+            makeRegions(hConf);
+        } catch (ParseException ex) {
+            throw new IOException(ex.getMessage());
+        } finally {
+            localCounts.delete();
+            new File(localCounts.getParent(), "." + localCounts.getName() + ".crc").delete();
+        }
+    }
+
     protected String roundOneDecimal(double val) {
         return onedec.format(val);
     }
@@ -236,46 +317,33 @@ public class HalvadeOptions {
         be.ugent.intec.halvade.utils.Logger.DEBUG("parsing dictionary " + ref + DICT_SUFFIX);
         try {
             FileSystem fs = FileSystem.get(new URI(ref + DICT_SUFFIX), conf);
-            FSDataInputStream stream = fs.open(new Path(ref + DICT_SUFFIX));
-            String line = getLine(stream); // header
-            dict = new SAMSequenceDictionary();
-            line = getLine(stream);
-            while (line != null) {
-                String[] lineData = line.split("\\s+");
-                String seqName = lineData[1].substring(lineData[1].indexOf(':') + 1);
-                int seqLength = 0;
-                try {
-                    seqLength = Integer.parseInt(lineData[2].substring(lineData[2].indexOf(':') + 1));
-                } catch (NumberFormatException ex) {
-                    be.ugent.intec.halvade.utils.Logger.EXCEPTION(ex);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(new Path(ref + DICT_SUFFIX))));
+            try {
+                String line = reader.readLine(); // header
+                dict = new SAMSequenceDictionary();
+                line = reader.readLine();
+                while (line != null) {
+                    String[] lineData = line.split("\\s+");
+                    String seqName = lineData[1].substring(lineData[1].indexOf(':') + 1);
+                    int seqLength = 0;
+                    try {
+                        seqLength = Integer.parseInt(lineData[2].substring(lineData[2].indexOf(':') + 1));
+                    } catch (NumberFormatException ex) {
+                        be.ugent.intec.halvade.utils.Logger.EXCEPTION(ex);
+                    }
+                    SAMSequenceRecord seq = new SAMSequenceRecord(seqName, seqLength);
+                    dict.addSequence(seq);
+                    line = reader.readLine();
                 }
-                SAMSequenceRecord seq = new SAMSequenceRecord(seqName, seqLength);
-//                Logger.DEBUG("name: " + seq.getSequenceName() + " length: " + seq.getSequenceLength());
-                dict.addSequence(seq);
-                line = getLine(stream);
+            } finally {
+                reader.close();
             }
-            HalvadeConf.setSequenceDictionary(conf, dict);
         } catch (URISyntaxException | IOException ex) {
             be.ugent.intec.halvade.utils.Logger.EXCEPTION(ex);
         }
 
     }
 
-    protected String getLine(FSDataInputStream stream) throws IOException {
-        String tmp = "";
-        try {
-            char c = (char) stream.readByte();
-            while (c != '\n') {
-                tmp = tmp + c;
-                c = (char) stream.readByte();
-            }
-            return tmp;
-        } catch (EOFException ex) {
-            // reached end of file, return null;
-            return null;
-        }
-    }
-
     protected void createOptions() {
         Option optIn = OptionBuilder.withArgName("input")
                 .hasArg()
@@ -333,6 +401,11 @@ public class HalvadeOptions {
                 .hasArg()
                 .withDescription("Sets the folder containing all the reference files for BWA or STAR and GATK on every node [tmp directory].")
                 .create("refdir");
+        Option optRefCache = OptionBuilder.withArgName("GB")
+                .hasArg()
+                .withDescription("Sets the size limit of the reference cache in the refdir of every node, "
+                        + "the least recently used references are removed when a new reference is downloaded. By default no reference is removed.")
+                .create("refcache");
         Option optJava = OptionBuilder.withArgName("java")
                 .hasArg()
                 .withDescription("Set location of java binary to use [must be 1.7+].")
@@ -392,6 +465,19 @@ public class HalvadeOptions {
                 .hasArg()
                 .withDescription("Overrides the number of reduce tasks running simultaneously on each node. ")
                 .create("rpn");
+        Option optSamThreads = OptionBuilder.withArgName("threads")
+                .hasArg()
+                .withDescription("Sets the number of threads that parse the SAM output of the aligner in each map task [map threads / 4].")
+                .create("samthreads");
+        Option optSplitSize = OptionBuilder.withArgName("MB")
+                .hasArg()
+                .withDescription("Sets the size of the input splits in MB, uncompressed and BGZF compressed fastq files are split. "
+                        + "By default every HDFS block is a split.")
+                .create("splitsize");
+        Option optCombineSplits = OptionBuilder.withDescription("Combines the input splits so every map task aligns a part of the input as large as "
+                + "the input divided by the number of map containers, or as large as the split size if set. "
+                + "The aligner and its index are loaded once for all splits in a task.")
+                .create("combine");
         Option optCustomArgs = OptionBuilder.withLongOpt("custom_args")
                 .withArgName("tool=args")
                 .hasArgs(2)
@@ -427,6 +513,9 @@ public class HalvadeOptions {
                 .create("smt");
         Option optKeep = OptionBuilder.withDescription("Keep intermediate files.")
                 .create("keep");
+        Option optBamStream = OptionBuilder.withDescription("The aligners write uncompressed BAM instead of SAM to the map tasks, "
+                + "uses samtools to convert the output of aligners other than STAR.")
+                .create("bamstream");
         Option optHap = OptionBuilder.withDescription("Use HaplotypeCaller instead of UnifiedGenotyper for Variant Detection.")
                 .create("hc");
         Option optRna = OptionBuilder.withDescription("Run the RNA Best Practices pipeline by Broad [default is DNA pipeline]. SG needs to be set for this.")
@@ -443,6 +532,40 @@ public class HalvadeOptions {
                 .create("redistribute");
         Option optMergeBam = OptionBuilder.withDescription("Merges all bam output from either bam input or the aligned reads from the fastq input files.")
                 .create("merge_bam");
+        Option optSampleReads = OptionBuilder.withArgName("reads")
+                .hasArg()
+                .withDescription("Aligns this number of reads of every input split before the Halvade job and splits the genome in regions "
+                        + "with the same number of aligned reads instead of the same length. Only used in the DNA pipeline with fastq input "
+                        + "when no read count file is given with -rpr.")
+                .create("sample");
+        Option optPackRegions = OptionBuilder.withArgName("n")
+                .hasArg()
+                .withDescription("Makes n times more regions than reducers and assigns them to the reducers so every reducer gets about "
+                        + "the same number of reads, or bases without a read count file [1].")
+                .create("pack_regions");
+        Option optSnapRegions = OptionBuilder.withDescription("Moves every region boundary to a run of N in the reference, "
+                        + "or to the position with the fewest reads in the read count file, close to the boundary so fewer reads overlap two regions.")
+                .create("snap_regions");
+        Option optHotRegions = OptionBuilder.withArgName("factor")
+                .hasArg()
+                .withDescription("Splits every region with more than factor times the average number of reads, or bases without "
+                        + "a read count file, in smaller regions, 4 is a good start. By default all regions are kept.")
+                .create("hot_regions");
+        Option optHotOverlap = OptionBuilder.withArgName("bases")
+                .hasArg()
+                .withDescription("The regions made by -hot_regions also get the reads this number of bases past their ends, "
+                        + "variants are only called by the region that contains them [500].")
+                .create("hot_overlap");
+        Option optReplan = OptionBuilder.withArgName("factor")
+                .hasArg()
+                .withDescription("Kills the reducers that run more than factor times longer than the median reducer "
+                        + "and processes their regions in smaller parts in a follow-up job. The mappers keep a copy "
+                        + "of their output on HDFS for this job.")
+                .create("replan");
+        Option optReplanParts = OptionBuilder.withArgName("n")
+                .hasArg()
+                .withDescription("The number of parts every region of a killed reducer is split in by -replan [8].")
+                .create("replan_parts");
         Option optReorderRegions = OptionBuilder.withDescription("Use the default split way but reorder tasks by size based on the read count file given by -rpr option.")
                 .create("reorder_regions");
 
@@ -453,6 +576,7 @@ public class HalvadeOptions {
         options.addOption(optBin);
         options.addOption(optTmp);
         options.addOption(optrefdir);
+        options.addOption(optRefCache);
         options.addOption(optSingle);
         options.addOption(optAln);
         options.addOption(optID);
@@ -473,11 +597,15 @@ public class HalvadeOptions {
         options.addOption(optVcores);
         options.addOption(optMem);
         options.addOption(optKeep);
+        options.addOption(optBamStream);
         options.addOption(optJustAlign);
         options.addOption(optCov);
         options.addOption(optMpn);
         options.addOption(optGff);
         options.addOption(optRpn);
+        options.addOption(optSamThreads);
+        options.addOption(optSplitSize);
+        options.addOption(optCombineSplits);
         options.addOption(optDry);
         options.addOption(optDrop);
         options.addOption(optReportAll);
@@ -492,6 +620,13 @@ public class HalvadeOptions {
         options.addOption(optMergeBam);
         options.addOption(optVerbose);
         options.addOption(optReorderRegions);
+        options.addOption(optSampleReads);
+        options.addOption(optPackRegions);
+        options.addOption(optSnapRegions);
+        options.addOption(optHotRegions);
+        options.addOption(optHotOverlap);
+        options.addOption(optReplan);
+        options.addOption(optReplanParts);
     }
 
     protected boolean parseArguments(String[] args, Configuration halvadeConf) throws ParseException {
@@ -524,6 +659,9 @@ public class HalvadeOptions {
         if (line.hasOption("refdir")) {
             localRefDir = line.getOptionValue("refdir");
         }
+        if (line.hasOption("refcache")) {
+            refCacheSize = Integer.parseInt(line.getOptionValue("refcache"));
+        }
         if (line.hasOption("nodes")) {
             nodes = Integer.parseInt(line.getOptionValue("nodes"));
         }
@@ -547,6 +685,15 @@ public class HalvadeOptions {
             setReduceContainers = false;
             reducerContainersPerNode = Integer.parseInt(line.getOptionValue("rpn"));
         }
+        if (line.hasOption("samthreads")) {
+            samParseThreads = Integer.parseInt(line.getOptionValue("samthreads"));
+        }
+        if (line.hasOption("splitsize")) {
+            splitSize = Long.parseLong(line.getOptionValue("splitsize")) * 1024 * 1024;
+        }
+        if (line.hasOption("combine")) {
+            combineSplits = true;
+        }
         if (line.hasOption("refmem")) {
             overrideMem = Integer.parseInt(line.getOptionValue("refmem")) * 1024;
         }
@@ -603,6 +750,27 @@ public class HalvadeOptions {
         if (line.hasOption("filter_dbsnp")) {
             filterDBSnp = true;
         }
+        if (line.hasOption("pack_regions")) {
+            regionsPerReducer = Math.max(1, Integer.parseInt(line.getOptionValue("pack_regions")));
+        }
+        if (line.hasOption("hot_regions")) {
+            hotRegionFactor = Double.parseDouble(line.getOptionValue("hot_regions"));
+        }
+        if (line.hasOption("hot_overlap")) {
+            hotRegionOverlap = Integer.parseInt(line.getOptionValue("hot_overlap"));
+        }
+        if (line.hasOption("replan")) {
+            replanFactor = Double.parseDouble(line.getOptionValue("replan"));
+        }
+        if (line.hasOption("replan_parts")) {
+            replanParts = Math.max(1, Integer.parseInt(line.getOptionValue("replan_parts")));
+        }
+        if (line.hasOption("snap_regions")) {
+            snapRegions = true;
+        }
+        if (line.hasOption("sample")) {
+            sampleReads = Integer.parseInt(line.getOptionValue("sample"));
+        }
         if (line.hasOption("reorder_regions")) {
             reorderRegions = true;
         }
@@ -612,6 +780,9 @@ public class HalvadeOptions {
         if (line.hasOption("P")) {
             useElPrep = false;
         }
+        if (line.hasOption("bamstream")) {
+            useBamStream = true;
+        }
         if (line.hasOption("id")) {
             RGID = line.getOptionValue("id");
         }
@@ -20,8 +20,11 @@ package be.ugent.intec.halvade;
 import org.seqdoop.hadoop_bam.SAMRecordWritable;
 import org.seqdoop.hadoop_bam.VariantContextWritable;
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
+import be.ugent.intec.halvade.hadoop.datatypes.EncodedSAMRecordWritable;
 import be.ugent.intec.halvade.hadoop.datatypes.GenomeSJ;
-import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeTextInputFormat;
+import be.ugent.intec.halvade.hadoop.mapreduce.CombinedFastqInputFormat;
+import be.ugent.intec.halvade.hadoop.mapreduce.FastqInputFormat;
+import be.ugent.intec.halvade.hadoop.mapreduce.SampleFastqInputFormat;
 import be.ugent.intec.halvade.hadoop.partitioners.*;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
@@ -30,16 +33,20 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.Tool;
+import be.ugent.intec.halvade.utils.ChromosomeSplitter;
 import be.ugent.intec.halvade.utils.Logger;
 import be.ugent.intec.halvade.utils.HalvadeConf;
+import be.ugent.intec.halvade.utils.StragglerMonitor;
 import be.ugent.intec.halvade.utils.Timer;
 import org.seqdoop.hadoop_bam.BAMInputFormat;
 import org.seqdoop.hadoop_bam.VCFInputFormat;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.List;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
@@ -53,6 +60,8 @@ public class MapReduceRunner extends Configured implements Tool  {
     protected final String RNA = " RNA job";
     protected final String DNA = " DNA job";
     protected HalvadeOptions halvadeOpts;
+    protected static final String REPLAN_DIR = "replan/";
+    protected static final String MAP_OUTPUT_DIR = "mapoutput/";
             
     @Override
     public int run(String[] strings) throws Exception {
@@ -76,6 +85,14 @@ public class MapReduceRunner extends Configured implements Tool  {
                     }
                     ret = runHalvadeJob(halvadeConf, halvadeDir, HalvadeResourceManager.RNA_SHMEM_PASS2);
                 } else {
+                    if(halvadeOpts.sampleReads > 0 && halvadeOpts.readCountsPerRegionFile == null && halvadeOpts.bedFile == null
+                            && !halvadeOpts.useBamInput && !halvadeOpts.dryRun) {
+                        ret = runSampleJob(halvadeConf, halvadeOpts.out + "/sample");
+                        if(ret != 0) {
+                            Logger.DEBUG("Halvade sample job failed.");
+                            System.exit(-1);
+                        }
+                    }
                     ret = runHalvadeJob(halvadeConf, halvadeDir, HalvadeResourceManager.DNA);
                 }
                 if(ret != 0) {
@@ -100,6 +117,7 @@ public class MapReduceRunner extends Configured implements Tool  {
         HalvadeResourceManager.setJobResources(halvadeOpts, pass1Conf, HalvadeResourceManager.RNA_SHMEM_PASS1, true, halvadeOpts.useBamInput);
         Job pass1Job = Job.getInstance(pass1Conf, "Halvade pass 1 RNA pipeline");
         pass1Job.addCacheArchive(new URI(halvadeOpts.halvadeBinaries));
+        addSplitterFile(pass1Job, pass1Conf);
         pass1Job.setJarByClass(be.ugent.intec.halvade.hadoop.mapreduce.HalvadeMapper.class);
         FileSystem fs = FileSystem.get(new URI(halvadeOpts.in), pass1Conf);
         try {
@@ -117,6 +135,7 @@ public class MapReduceRunner extends Configured implements Tool  {
         } catch (IOException | IllegalArgumentException e) {
             Logger.EXCEPTION(e);
         }
+        setInputSplitSize(pass1Job);
 
         FileSystem outFs = FileSystem.get(new URI(tmpOutDir), pass1Conf);
         boolean skipPass1 = false;
@@ -135,7 +154,7 @@ public class MapReduceRunner extends Configured implements Tool  {
             FileOutputFormat.setOutputPath(pass1Job, new Path(tmpOutDir));
             pass1Job.setMapperClass(be.ugent.intec.halvade.hadoop.mapreduce.StarAlignPassXMapper.class);
 
-            pass1Job.setInputFormatClass(HalvadeTextInputFormat.class);
+            setFastqInputFormat(pass1Job);
             pass1Job.setMapOutputKeyClass(GenomeSJ.class);
             pass1Job.setMapOutputValueClass(Text.class);
 
@@ -151,6 +170,44 @@ public class MapReduceRunner extends Configured implements Tool  {
             return 0;
     }
     
+    /**
+     * aligns the first reads of every input split and counts the aligned reads per bin,
+     * the regions of the Halvade job are then made with the same number of reads
+     */
+    protected int runSampleJob(Configuration halvadeConf, String tmpOutDir) throws IOException, InterruptedException, ClassNotFoundException, URISyntaxException {
+        Configuration sampleConf = new Configuration(halvadeConf);
+        HalvadeResourceManager.setJobResources(halvadeOpts, sampleConf, HalvadeResourceManager.DNA, false, false);
+        HalvadeConf.setOutDir(sampleConf, tmpOutDir);
+        HalvadeConf.setSampleReads(sampleConf, halvadeOpts.sampleReads);
+        FileSystem outFs = FileSystem.get(new URI(tmpOutDir), sampleConf);
+        if (outFs.exists(new Path(tmpOutDir))) {
+            Logger.INFO("The output directory \'" + tmpOutDir + "\' already exists.");
+            Logger.INFO("ERROR: Please remove this directory before trying again.");
+            System.exit(-2);
+        }
+        Job sampleJob = Job.getInstance(sampleConf, "Halvade sample");
+        sampleJob.addCacheArchive(new URI(halvadeOpts.halvadeBinaries));
+        addSplitterFile(sampleJob, sampleConf);
+        sampleJob.setJarByClass(be.ugent.intec.halvade.hadoop.mapreduce.HalvadeMapper.class);
+        addInputFiles(halvadeOpts.in, sampleConf, sampleJob);
+        setInputSplitSize(sampleJob);
+        FileOutputFormat.setOutputPath(sampleJob, new Path(tmpOutDir));
+
+        sampleJob.setMapperClass(halvadeOpts.alignmentTools[halvadeOpts.aln]);
+        sampleJob.setInputFormatClass(SampleFastqInputFormat.class);
+        sampleJob.setMapOutputKeyClass(ChromosomeRegion.class);
+        sampleJob.setMapOutputValueClass(EncodedSAMRecordWritable.class);
+        sampleJob.setNumReduceTasks(1);
+        sampleJob.setReducerClass(be.ugent.intec.halvade.hadoop.mapreduce.ReadCountReducer.class);
+        sampleJob.setOutputKeyClass(Text.class);
+        sampleJob.setOutputValueClass(LongWritable.class);
+
+        int ret = runTimedJob(sampleJob, "Halvade sample Job");
+        if(ret == 0)
+            halvadeOpts.makeRegionsFromReadCounts(halvadeConf, tmpOutDir + "/part-r-00000");
+        return ret;
+    }
+    
     protected int runHalvadeJob(Configuration halvadeConf, String tmpOutDir, int jobType) throws IOException, URISyntaxException, InterruptedException, ClassNotFoundException {
         String pipeline = "";
         if(jobType == HalvadeResourceManager.RNA_SHMEM_PASS2) {
@@ -171,11 +228,23 @@ public class MapReduceRunner extends Configured implements Tool  {
         if(halvadeOpts.useBamInput)
             setHeaderFile(halvadeOpts.in, halvadeConf);
         
-        Job halvadeJob = Job.getInstance(halvadeConf, "Halvade" + pipeline);
+        boolean replan = halvadeOpts.replanFactor > 0 && !halvadeOpts.justAlign && !halvadeOpts.mergeBam && !halvadeOpts.dryRun;
+        if(replan)
+            HalvadeConf.setMapOutputDir(halvadeConf, halvadeOpts.out + MAP_OUTPUT_DIR);
+        Job halvadeJob = createHalvadeJob(halvadeConf, jobType, "Halvade" + pipeline);
+        FileOutputFormat.setOutputPath(halvadeJob, new Path(tmpOutDir));
+        if(replan)
+            return runMonitoredJob(halvadeJob, halvadeConf, tmpOutDir, jobType, pipeline);
+        return runTimedJob(halvadeJob, "Halvade Job");
+    }
+    
+    protected Job createHalvadeJob(Configuration halvadeConf, int jobType, String name) throws IOException, URISyntaxException {
+        Job halvadeJob = Job.getInstance(halvadeConf, name);
         halvadeJob.addCacheArchive(new URI(halvadeOpts.halvadeBinaries));
+        addSplitterFile(halvadeJob, halvadeConf);
         halvadeJob.setJarByClass(be.ugent.intec.halvade.hadoop.mapreduce.HalvadeMapper.class);
         addInputFiles(halvadeOpts.in, halvadeConf, halvadeJob);
-        FileOutputFormat.setOutputPath(halvadeJob, new Path(tmpOutDir));
+        setInputSplitSize(halvadeJob);
 
         if(jobType == HalvadeResourceManager.RNA_SHMEM_PASS2) {
             halvadeJob.setMapperClass(be.ugent.intec.halvade.hadoop.mapreduce.StarAlignPassXMapper.class);
@@ -187,8 +256,8 @@ public class MapReduceRunner extends Configured implements Tool  {
         
         
         halvadeJob.setMapOutputKeyClass(ChromosomeRegion.class);
-        halvadeJob.setMapOutputValueClass(SAMRecordWritable.class);
-        halvadeJob.setInputFormatClass(HalvadeTextInputFormat.class);
+        halvadeJob.setMapOutputValueClass(EncodedSAMRecordWritable.class);
+        setFastqInputFormat(halvadeJob);
         halvadeJob.setOutputKeyClass(Text.class);
         if(halvadeOpts.mergeBam) {
             halvadeJob.setSortComparatorClass(SimpleChrRegionComparator.class);
@@ -213,7 +282,96 @@ public class MapReduceRunner extends Configured implements Tool  {
             halvadeJob.setInputFormatClass(BAMInputFormat.class);
         }
         
-        return runTimedJob(halvadeJob, "Halvade Job");
+        return halvadeJob;
+    }
+    
+    /**
+     * runs the Halvade job while the straggler monitor looks for reducers that take much longer than the others,
+     * the regions of these reducers are split in smaller parts and processed by a follow-up job 
+     * that starts as soon as they are found
+     */
+    protected int runMonitoredJob(Job job, final Configuration halvadeConf, final String tmpOutDir, final int jobType, final String pipeline) 
+            throws IOException, URISyntaxException, InterruptedException, ClassNotFoundException {
+        Logger.DEBUG("Started Halvade Job");
+        Timer timer = new Timer();
+        timer.start();
+        job.submit();
+        final int reducerCount = job.getNumReduceTasks();
+        StragglerMonitor monitor = new StragglerMonitor(job, halvadeOpts.replanFactor) {
+            @Override
+            protected Job createReplanJob(List<Integer> reducers) throws IOException, URISyntaxException, InterruptedException {
+                return MapReduceRunner.this.createReplanJob(halvadeConf, tmpOutDir, jobType, pipeline, reducers, reducerCount);
+            }
+        };
+        monitor.start();
+        int ret = job.monitorAndPrintJob() ? 0 : 1;
+        monitor.interrupt();
+        monitor.join();
+        timer.stop();
+        Logger.DEBUG("Finished Halvade Job [runtime: " + timer.getFormattedElapsedTime() + "]");
+        Job replanJob = monitor.getReplanJob();
+        if(replanJob != null) {
+            if(ret != 0)
+                replanJob.killJob();
+            else {
+                ret = runTimedJob(replanJob, "Halvade replan Job");
+                if(ret == 0)
+                    monitor.removeStragglerOutput();
+            }
+        }
+        FileSystem fs = FileSystem.get(new URI(halvadeOpts.out), halvadeConf);
+        fs.delete(new Path(halvadeOpts.out + MAP_OUTPUT_DIR), true);
+        return ret;
+    }
+    
+    /**
+     * the follow-up job reads the map output that the mappers of the Halvade job kept, 
+     * only the reads of the replanned regions go to the reducers. the vcf files are written next to those of the Halvade job
+     * @return null if the reducers have no regions
+     */
+    protected Job createReplanJob(Configuration halvadeConf, String tmpOutDir, int jobType, String pipeline, 
+            List<Integer> stragglers, int reducerCount) throws IOException, URISyntaxException, InterruptedException {
+        Configuration replanConf = new Configuration(halvadeConf);
+        ChromosomeSplitter splitter = new ChromosomeSplitter(HalvadeConf.getBedRegions(halvadeConf), halvadeConf);
+        // the regions only get an overlap margin if the variants in it are called by one region
+        int overlap = halvadeOpts.hotRegionFactor > 0 ? halvadeOpts.hotRegionOverlap : 0;
+        int regions = splitter.replanRegions(stragglers, reducerCount, halvadeOpts.replanParts, 
+                overlap, halvadeOpts.readCountsPerRegionFile);
+        if(regions == 0)
+            return null;
+        // the smaller regions get new keys, these must still fit in the shuffle key
+        int contigs = HalvadeConf.getSequenceDictionary(halvadeConf).size();
+        if(regions > ChromosomeRegion.MAX_REGIONS || contigs > ChromosomeRegion.MAX_CHROMOSOMES)
+            throw new IOException("the shuffle key supports at most " + ChromosomeRegion.MAX_REGIONS + " regions and " 
+                    + ChromosomeRegion.MAX_CHROMOSOMES + " contigs, the replan job has " + regions
+                    + " regions and " + contigs + " contigs.");
+        int reduces = Math.min(regions, stragglers.size() * halvadeOpts.replanParts);
+        splitter.makeReducerTable(reduces, halvadeOpts.readCountsPerRegionFile);
+        String bedRegions = halvadeOpts.out + REPLAN_DIR + ChromosomeSplitter.SPLITTER_FILE;
+        splitter.exportSplitter(bedRegions, replanConf);
+        HalvadeConf.setBedRegions(replanConf, bedRegions);
+        
+        Job replanJob = Job.getInstance(replanConf, "Halvade replan" + pipeline);
+        replanJob.addCacheArchive(new URI(halvadeOpts.halvadeBinaries));
+        addSplitterFile(replanJob, replanConf);
+        replanJob.setJarByClass(be.ugent.intec.halvade.hadoop.mapreduce.ReplanMapper.class);
+        FileInputFormat.addInputPath(replanJob, new Path(HalvadeConf.getMapOutputDir(halvadeConf)));
+        replanJob.setInputFormatClass(SequenceFileInputFormat.class);
+        replanJob.setMapperClass(be.ugent.intec.halvade.hadoop.mapreduce.ReplanMapper.class);
+        if(jobType == HalvadeResourceManager.RNA_SHMEM_PASS2)
+            replanJob.setReducerClass(be.ugent.intec.halvade.hadoop.mapreduce.RnaGATKReducer.class);
+        else 
+            replanJob.setReducerClass(be.ugent.intec.halvade.hadoop.mapreduce.DnaGATKReducer.class);
+        replanJob.setMapOutputKeyClass(ChromosomeRegion.class);
+        replanJob.setMapOutputValueClass(EncodedSAMRecordWritable.class);
+        replanJob.setOutputKeyClass(Text.class);
+        replanJob.setOutputValueClass(VariantContextWritable.class);
+        replanJob.setPartitionerClass(ChrRgPartitioner.class);
+        replanJob.setSortComparatorClass(ChrRgSortComparator.class);
+        replanJob.setGroupingComparatorClass(ChrRgGroupingComparator.class);
+        FileOutputFormat.setOutputPath(replanJob, new Path(tmpOutDir + "/" + REPLAN_DIR));
+        replanJob.setNumReduceTasks(reduces);
+        return replanJob;
     }
     
     protected int runCombineJob(String halvadeOutDir, String mergeOutDir, boolean featureCount) throws IOException, URISyntaxException, InterruptedException, ClassNotFoundException {
@@ -263,6 +421,14 @@ public class MapReduceRunner extends Configured implements Tool  {
         return ret;
     }
     
+    /**
+     * the regions and sequence dictionary are read by every task, 
+     * the distributed cache puts the file in the working directory of the task
+     */
+    protected void addSplitterFile(Job job, Configuration conf) throws URISyntaxException {
+        job.addCacheFile(new URI(HalvadeConf.getBedRegions(conf) + "#" + ChromosomeSplitter.SPLITTER_FILE));
+    }
+    
     protected void setHeaderFile(String input, Configuration conf) throws IOException, URISyntaxException {
         FileSystem fs = FileSystem.get(new URI(input), conf);
         String headerFile = null;
@@ -291,6 +457,32 @@ public class MapReduceRunner extends Configured implements Tool  {
             FileInputFormat.addInputPath(job, new Path(input));
     }
     
+    protected void setInputSplitSize(Job job) throws IOException {
+        if(halvadeOpts.combineSplits) {
+            // every map container gets an equal part of the input unless the split size is set
+            long splitSize = halvadeOpts.splitSize;
+            if(splitSize <= 0) {
+                long inputSize = 0;
+                for(Path path : FileInputFormat.getInputPaths(job))
+                    inputSize += path.getFileSystem(job.getConfiguration()).getContentSummary(path).getLength();
+                int maps = Math.max(1, HalvadeConf.getMapContainerCount(job.getConfiguration()));
+                splitSize = Math.max(1, (inputSize + maps - 1) / maps);
+            }
+            Logger.DEBUG("combined input split size: " + splitSize);
+            FileInputFormat.setMaxInputSplitSize(job, splitSize);
+        } else if(halvadeOpts.splitSize > 0) {
+            FileInputFormat.setMinInputSplitSize(job, halvadeOpts.splitSize);
+            FileInputFormat.setMaxInputSplitSize(job, halvadeOpts.splitSize);
+        }
+    }
+    
+    protected void setFastqInputFormat(Job job) {
+        if(halvadeOpts.combineSplits)
+            job.setInputFormatClass(CombinedFastqInputFormat.class);
+        else
+            job.setInputFormatClass(FastqInputFormat.class);
+    }
+    
     protected void addInputFiles(String input, Configuration conf, Job job, String filter) throws URISyntaxException, IOException {
         FileSystem fs = FileSystem.get(new URI(input), conf);
         if (fs.getFileStatus(new Path(input)).isDirectory()) {
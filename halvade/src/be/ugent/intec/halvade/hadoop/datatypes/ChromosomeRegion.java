@@ -30,6 +30,22 @@ public class ChromosomeRegion implements WritableComparable<ChromosomeRegion> {
     protected int chromosome;
     protected int position;
     protected int reduceNumber; // identifies region in chromosome but every number is unique, so chr is also separate!
+    /*
+     * the key is serialized as one long: [0][reduceNumber:16][chromosome:16][position:31]
+     * so the natural long order is reduceNumber -> chromosome -> position
+     */
+    public static final int POSITION_BITS = 31;
+    public static final int CHROMOSOME_BITS = 16;
+    public static final int REDUCE_NUMBER_BITS = 16;
+    public static final int CHROMOSOME_SHIFT = POSITION_BITS;
+    public static final int REDUCE_NUMBER_SHIFT = POSITION_BITS + CHROMOSOME_BITS;
+    public static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+    public static final long CHROMOSOME_MASK = (1L << CHROMOSOME_BITS) - 1;
+    public static final long REDUCE_NUMBER_MASK = (1L << REDUCE_NUMBER_BITS) - 1;
+    public static final long CHROMOSOME_POSITION_MASK = (1L << REDUCE_NUMBER_SHIFT) - 1;
+    public static final int MAX_CHROMOSOMES = 1 << CHROMOSOME_BITS;
+    public static final int MAX_REGIONS = 1 << REDUCE_NUMBER_BITS;
+    public static final int SERIALIZED_SIZE = 8;
 
     public int getChromosome() {
         return chromosome;
@@ -55,35 +71,49 @@ public class ChromosomeRegion implements WritableComparable<ChromosomeRegion> {
         this.position = -1;
     }
 
+    public long getPackedKey() {
+        return pack(chromosome, position, reduceNumber);
+    }
+
+    public void setPackedKey(long key) {
+        chromosome = getChromosome(key);
+        position = getPosition(key);
+        reduceNumber = getReduceNumber(key);
+    }
+
+    public static long pack(int chromosome, int position, int reduceNumber) {
+        return ((reduceNumber & REDUCE_NUMBER_MASK) << REDUCE_NUMBER_SHIFT)
+                | ((chromosome & CHROMOSOME_MASK) << CHROMOSOME_SHIFT)
+                | (position & POSITION_MASK);
+    }
+
+    public static int getChromosome(long key) {
+        return (int) ((key >>> CHROMOSOME_SHIFT) & CHROMOSOME_MASK);
+    }
+
+    public static int getPosition(long key) {
+        return (int) (key & POSITION_MASK);
+    }
+
+    public static int getReduceNumber(long key) {
+        return (int) ((key >>> REDUCE_NUMBER_SHIFT) & REDUCE_NUMBER_MASK);
+    }
+
     @Override
     public void write(DataOutput d) throws IOException {
-        d.writeInt(chromosome);
-        d.writeInt(position);
-        d.writeInt(reduceNumber);
+        d.writeLong(getPackedKey());
     }
 
     @Override
     public void readFields(DataInput di) throws IOException {
-        chromosome = di.readInt();
-        position = di.readInt();
-        reduceNumber = di.readInt();
+        setPackedKey(di.readLong());
     }
 
     @Override
     public int compareTo(ChromosomeRegion t) {
-        /*
-         * returns:
-         * x < 0 if t is less than this
-         * 0 if equals
-         * x > 0 if t is bigger than this
-         */
-//        if(chromosome == t.chromosome) {
-            if(reduceNumber == t.reduceNumber) 
-                return position - t.position;
-            else
-                return reduceNumber - t.reduceNumber;
-//        } else
-//            return chromosome - t.chromosome;
+        long k1 = getPackedKey();
+        long k2 = t.getPackedKey();
+        return k1 < k2 ? -1 : (k1 == k2 ? 0 : 1);
     }
 
     @Override
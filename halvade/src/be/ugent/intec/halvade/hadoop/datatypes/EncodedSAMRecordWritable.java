@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.datatypes;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.seqdoop.hadoop_bam.LazyBAMRecordFactory;
+import org.seqdoop.hadoop_bam.SAMRecordWritable;
+
+/**
+ * SAMRecordWritable that keeps the BAM encoding of the current record,
+ * a read that overlaps multiple regions is encoded once and the bytes are
+ * written again for every key. The serialized form is the same as SAMRecordWritable.
+ * When read back only the bytes are stored, the SAMRecord is decoded on the first get()
+ * and the fields needed to sort and split the reads can be read from the bytes directly.
+ *
+ * @author ddecap
+ */
+public class EncodedSAMRecordWritable extends SAMRecordWritable {
+    // offsets in the encoded record, which starts with the little endian block size
+    protected static final int REF_ID_OFFSET = 4;
+    protected static final int POS_OFFSET = 8;
+    protected static final int READ_NAME_LENGTH_OFFSET = 12;
+    protected static final int CIGAR_COUNT_OFFSET = 16;
+    protected static final int FLAG_OFFSET = 18;
+    protected static final int SEQ_LENGTH_OFFSET = 20;
+    protected static final int MATE_REF_ID_OFFSET = 24;
+    protected static final int MATE_POS_OFFSET = 28;
+    protected static final int READ_NAME_OFFSET = 36;
+    protected static final int UNMAPPED_FLAG = 0x4;
+    protected SAMRecord record;
+    protected DataOutputBuffer encoded;
+    protected boolean isEncoded;
+    protected BAMRecordCodec codec;
+    protected SAMFileHeader codecHeader;
+    protected BAMRecordCodec decoder;
+    protected DataInputBuffer decoderInput;
+
+    public EncodedSAMRecordWritable() {
+        super();
+        encoded = new DataOutputBuffer();
+        isEncoded = false;
+    }
+
+    @Override
+    public SAMRecord get() {
+        if(record == null && isEncoded)
+            decode();
+        return record;
+    }
+
+    @Override
+    public void set(SAMRecord record) {
+        this.record = record;
+        isEncoded = false;
+    }
+
+    /**
+     * copies the encoded record of another writable
+     */
+    public void set(EncodedSAMRecordWritable other) throws IOException {
+        other.encodeIfNeeded();
+        encoded.reset();
+        encoded.write(other.encoded.getData(), 0, other.encoded.getLength());
+        isEncoded = true;
+        record = null;
+    }
+
+    @Override
+    public void write(DataOutput d) throws IOException {
+        encodeIfNeeded();
+        d.write(encoded.getData(), 0, encoded.getLength());
+    }
+
+    @Override
+    public void readFields(DataInput di) throws IOException {
+        int blockSize = Integer.reverseBytes(di.readInt());
+        encoded.reset();
+        encoded.writeInt(Integer.reverseBytes(blockSize));
+        encoded.write(di, blockSize);
+        isEncoded = true;
+        record = null;
+    }
+
+    /**
+     * the encoded record, including the block size
+     */
+    public byte[] getData() throws IOException {
+        encodeIfNeeded();
+        return encoded.getData();
+    }
+
+    public int getLength() throws IOException {
+        encodeIfNeeded();
+        return encoded.getLength();
+    }
+
+    public int getReferenceIndex() throws IOException {
+        encodeIfNeeded();
+        return readInt(REF_ID_OFFSET);
+    }
+
+    public int getAlignmentStart() throws IOException {
+        encodeIfNeeded();
+        return readInt(POS_OFFSET) + 1;
+    }
+
+    public int getMateReferenceIndex() throws IOException {
+        encodeIfNeeded();
+        return readInt(MATE_REF_ID_OFFSET);
+    }
+
+    public int getMateAlignmentStart() throws IOException {
+        encodeIfNeeded();
+        return readInt(MATE_POS_OFFSET) + 1;
+    }
+
+    public int getFlags() throws IOException {
+        encodeIfNeeded();
+        return readUnsignedShort(FLAG_OFFSET);
+    }
+
+    public boolean getReadUnmappedFlag() throws IOException {
+        return (getFlags() & UNMAPPED_FLAG) != 0;
+    }
+
+    public int getAlignmentEnd() throws IOException {
+        if(getReadUnmappedFlag())
+            return SAMRecord.NO_ALIGNMENT_START;
+        int cigarOffset = READ_NAME_OFFSET + (encoded.getData()[READ_NAME_LENGTH_OFFSET] & 0xff);
+        int cigarCount = readUnsignedShort(CIGAR_COUNT_OFFSET);
+        int length = 0;
+        for(int i = 0; i < cigarCount; i++) {
+            int op = readInt(cigarOffset + 4 * i);
+            switch(op & 0xf) {
+                case 0: // M
+                case 2: // D
+                case 3: // N
+                case 7: // =
+                case 8: // X
+                    length += op >>> 4;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return getAlignmentStart() + length - 1;
+    }
+
+    public int getReadLength() throws IOException {
+        encodeIfNeeded();
+        return readInt(SEQ_LENGTH_OFFSET);
+    }
+
+    /**
+     * offset of the base qualities in getData(), there are getReadLength() qualities
+     */
+    public int getBaseQualitiesOffset() throws IOException {
+        int readLength = getReadLength();
+        return READ_NAME_OFFSET + (encoded.getData()[READ_NAME_LENGTH_OFFSET] & 0xff)
+                + 4 * readUnsignedShort(CIGAR_COUNT_OFFSET) + (readLength + 1) / 2;
+    }
+
+    /**
+     * call after changing the bytes returned by getData() so the record is decoded again
+     */
+    public void invalidateRecord() {
+        record = null;
+    }
+
+    protected void encodeIfNeeded() throws IOException {
+        if(isEncoded)
+            return;
+        SAMFileHeader header = record.getHeader();
+        if(codec == null || codecHeader != header) {
+            codec = new BAMRecordCodec(header);
+            codec.setOutputStream(encoded);
+            codecHeader = header;
+        }
+        encoded.reset();
+        codec.encode(record);
+        isEncoded = true;
+    }
+
+    protected void decode() {
+        if(decoder == null) {
+            decoder = new BAMRecordCodec(null, new LazyBAMRecordFactory());
+            decoderInput = new DataInputBuffer();
+            decoder.setInputStream(decoderInput);
+        }
+        decoderInput.reset(encoded.getData(), encoded.getLength());
+        record = decoder.decode();
+    }
+
+    protected int readInt(int offset) {
+        byte[] b = encoded.getData();
+        return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8)
+                | ((b[offset + 2] & 0xff) << 16) | ((b[offset + 3] & 0xff) << 24);
+    }
+
+    protected int readUnsignedShort(int offset) {
+        byte[] b = encoded.getData();
+        return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.datatypes;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * a block of whole fastq reads (4 newline terminated lines each) in a reusable
+ * byte buffer, for paired data the mates are interleaved so read i is mate i % 2
+ *
+ * @author ddecap
+ */
+public class FastqReadBlock implements Writable {
+    protected static final int LINES_PER_READ = 4;
+    protected static final int INITIAL_BYTES = 1 << 16;
+    protected static final int INITIAL_READS = 64;
+    protected byte[] data;
+    protected int length;
+    protected int[] readStart;
+    protected int[] sequenceLength;
+    protected int readCount;
+    protected int lineCount;
+
+    public FastqReadBlock() {
+        data = new byte[INITIAL_BYTES];
+        readStart = new int[INITIAL_READS];
+        sequenceLength = new int[INITIAL_READS];
+        clear();
+    }
+
+    public void clear() {
+        length = 0;
+        readCount = 0;
+        lineCount = 0;
+    }
+
+    /**
+     * copies the reads of another block, the buffers are reused
+     */
+    public void set(FastqReadBlock other) {
+        ensureCapacity(other.length);
+        System.arraycopy(other.data, 0, data, 0, other.length);
+        length = other.length;
+        if(readStart.length < other.readCount) {
+            readStart = new int[other.readStart.length];
+            sequenceLength = new int[other.readStart.length];
+        }
+        System.arraycopy(other.readStart, 0, readStart, 0, other.readCount);
+        System.arraycopy(other.sequenceLength, 0, sequenceLength, 0, other.readCount);
+        readCount = other.readCount;
+        lineCount = other.lineCount;
+    }
+
+    /**
+     * appends the next line of the current read, a new read starts every 4 lines
+     */
+    public void addLine(Text line) {
+        int lineInRead = lineCount % LINES_PER_READ;
+        if(lineInRead == 0) {
+            if(readCount == readStart.length) {
+                readStart = Arrays.copyOf(readStart, readCount * 2);
+                sequenceLength = Arrays.copyOf(sequenceLength, readCount * 2);
+            }
+            readStart[readCount] = length;
+            readCount++;
+        } else if(lineInRead == 1) {
+            sequenceLength[readCount - 1] = line.getLength();
+        }
+        ensureCapacity(length + line.getLength() + 1);
+        System.arraycopy(line.getBytes(), 0, data, length, line.getLength());
+        length += line.getLength();
+        data[length++] = '\n';
+        lineCount++;
+    }
+
+    /**
+     * true if the last read has all its lines
+     */
+    public boolean isComplete() {
+        return lineCount % LINES_PER_READ == 0;
+    }
+
+    public byte[] getBytes() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getReadCount() {
+        return readCount;
+    }
+
+    public int getReadStart(int read) {
+        return readStart[read];
+    }
+
+    public int getReadLength(int read) {
+        return (read + 1 < readCount ? readStart[read + 1] : length) - readStart[read];
+    }
+
+    public int getSequenceLength(int read) {
+        return sequenceLength[read];
+    }
+
+    public void writeRead(int read, OutputStream out) throws IOException {
+        out.write(data, readStart[read], getReadLength(read));
+    }
+
+    protected void ensureCapacity(int size) {
+        if(size > data.length)
+            data = Arrays.copyOf(data, Math.max(size, data.length * 2));
+    }
+
+    @Override
+    public void write(DataOutput d) throws IOException {
+        WritableUtils.writeVInt(d, readCount);
+        for(int i = 0; i < readCount; i++) {
+            WritableUtils.writeVInt(d, readStart[i]);
+            WritableUtils.writeVInt(d, sequenceLength[i]);
+        }
+        WritableUtils.writeVInt(d, length);
+        d.write(data, 0, length);
+    }
+
+    @Override
+    public void readFields(DataInput di) throws IOException {
+        readCount = WritableUtils.readVInt(di);
+        if(readCount > readStart.length) {
+            readStart = new int[readCount];
+            sequenceLength = new int[readCount];
+        }
+        for(int i = 0; i < readCount; i++) {
+            readStart[i] = WritableUtils.readVInt(di);
+            sequenceLength[i] = WritableUtils.readVInt(di);
+        }
+        length = WritableUtils.readVInt(di);
+        ensureCapacity(length);
+        di.readFully(data, 0, length);
+        lineCount = readCount * LINES_PER_READ;
+    }
+}
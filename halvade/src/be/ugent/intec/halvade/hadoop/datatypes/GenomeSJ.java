@@ -30,6 +30,9 @@ import org.apache.hadoop.io.WritableComparable;
 public class GenomeSJ implements WritableComparable<GenomeSJ> {
     protected int type; // -2 = overhang length, -1 = sj string, 2 =  count per key region
     protected int secondary_key;
+    // byte offsets of the fields in the serialized key, used by the raw comparators
+    public static final int TYPE_OFFSET = 0;
+    public static final int SECONDARY_KEY_OFFSET = 4;
 
     public void setOverhang(int overhang) {
         this.type = -2;
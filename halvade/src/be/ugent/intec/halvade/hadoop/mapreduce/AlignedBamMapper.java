@@ -39,6 +39,17 @@ public class AlignedBamMapper extends Mapper<LongWritable,SAMRecordWritable,
         }
     }
 
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+        super.cleanup(context);
+        try {
+            instance.closeMapOutput();
+        } catch (URISyntaxException ex) {
+            Logger.EXCEPTION(ex);
+            throw new InterruptedException();
+        }
+    }
+
     @Override
     protected void setup(Context context) throws IOException, InterruptedException {
         isPaired = HalvadeConf.getIsPaired(context.getConfiguration());
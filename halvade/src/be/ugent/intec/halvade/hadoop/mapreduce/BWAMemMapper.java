@@ -18,8 +18,8 @@
 package be.ugent.intec.halvade.hadoop.mapreduce;
 
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
+import be.ugent.intec.halvade.hadoop.datatypes.FastqReadBlock;
 import java.io.IOException;
-import org.apache.hadoop.io.Text;
 import be.ugent.intec.halvade.tools.BWAMemInstance;
 import be.ugent.intec.halvade.utils.Logger;
 import org.seqdoop.hadoop_bam.SAMRecordWritable;
@@ -33,9 +33,9 @@ import org.apache.hadoop.io.LongWritable;
 public class BWAMemMapper extends HalvadeMapper<ChromosomeRegion, SAMRecordWritable> {
 
     @Override
-    protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+    protected void map(LongWritable key, FastqReadBlock value, Context context) throws IOException, InterruptedException {
         super.map(key, value, context);
-        ((BWAMemInstance)instance).feedLine(value.toString());
+        instance.feedReads(value);
     }
 
     @Override
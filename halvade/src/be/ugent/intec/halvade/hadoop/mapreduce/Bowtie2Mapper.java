@@ -18,9 +18,9 @@
 package be.ugent.intec.halvade.hadoop.mapreduce;
 
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
+import be.ugent.intec.halvade.hadoop.datatypes.FastqReadBlock;
 import be.ugent.intec.halvade.tools.Bowtie2Instance;
 import java.io.IOException;
-import org.apache.hadoop.io.Text;
 import be.ugent.intec.halvade.utils.Logger;
 import org.seqdoop.hadoop_bam.SAMRecordWritable;
 import java.net.URISyntaxException;
@@ -35,9 +35,9 @@ public class Bowtie2Mapper extends HalvadeMapper<ChromosomeRegion, SAMRecordWrit
 
     
     @Override
-    protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+    protected void map(LongWritable key, FastqReadBlock value, Context context) throws IOException, InterruptedException {
         super.map(key, value, context);
-        ((Bowtie2Instance)instance).feedLine(value.toString(), (readcount % 2 + 1));
+        instance.feedReads(value);
     }
 
     @Override
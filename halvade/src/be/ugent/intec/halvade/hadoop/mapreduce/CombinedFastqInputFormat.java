@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.mapreduce;
+
+import be.ugent.intec.halvade.hadoop.datatypes.FastqReadBlock;
+import java.io.IOException;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReaderWrapper;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+
+/**
+ * groups the fastq splits of a node in one split so a single map task,
+ * and a single aligner process with its index in memory, aligns all of them
+ * every part of the split is read with the FastqRecordReader
+ *
+ * @author ddecap
+ */
+public class CombinedFastqInputFormat extends CombineFileInputFormat<LongWritable, FastqReadBlock> {
+
+    @Override
+    public RecordReader<LongWritable, FastqReadBlock> createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException {
+        return new CombineFileRecordReader<>((CombineFileSplit) split, context, FastqRecordReaderWrapper.class);
+    }
+
+    @Override
+    protected boolean isSplitable(JobContext context, Path file) {
+        return new FastqInputFormat().isSplitable(context, file);
+    }
+
+    /**
+     * reads part idx of a combined split
+     */
+    public static class FastqRecordReaderWrapper extends CombineFileRecordReaderWrapper<LongWritable, FastqReadBlock> {
+
+        public FastqRecordReaderWrapper(CombineFileSplit split, TaskAttemptContext context, Integer idx) throws IOException, InterruptedException {
+            super(new FastqInputFormat(), split, context, idx);
+        }
+    }
+}
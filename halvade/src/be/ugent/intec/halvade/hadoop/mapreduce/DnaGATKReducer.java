@@ -54,10 +54,18 @@ public class DnaGATKReducer extends GATKReducer {
         
         indelRealignment(context, region, gatk, preprocess, tmpFile1);        
         baseQualityScoreRecalibration(context, region, r, tools, gatk, tmpFile1, tmpFile2);        
-        DnaVariantCalling(context, region, gatk, tmpFile2, snps);
-        variantFiles.add(snps);
+        String callingRegion = makeCallingRegionFile(context, r, tools, region);
+        if(callingRegion != null) {
+            DnaVariantCalling(context, callingRegion, gatk, tmpFile2, snps);
+            variantFiles.add(snps);
+        } else {
+            HalvadeFileUtils.removeLocalFile(keep, tmpFile2, context, HalvadeCounters.FOUT_GATK_TMP);
+            HalvadeFileUtils.removeLocalFile(keep, tmpFile2.replaceAll(".bam", ".bai"));
+        }
            
         HalvadeFileUtils.removeLocalFile(region);
+        if(callingRegion != null && !callingRegion.equals(region))
+            HalvadeFileUtils.removeLocalFile(callingRegion);
         long estimatedTime = System.currentTimeMillis() - startTime;
         Logger.DEBUG("total estimated time: " + estimatedTime / 1000);
     }
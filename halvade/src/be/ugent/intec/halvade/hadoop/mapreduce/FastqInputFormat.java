@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.mapreduce;
+
+import be.ugent.intec.halvade.hadoop.datatypes.FastqReadBlock;
+import be.ugent.intec.halvade.utils.Logger;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+/**
+ *
+ * @author ddecap
+ */
+public class FastqInputFormat extends FileInputFormat<LongWritable, FastqReadBlock> {
+
+    @Override
+    public RecordReader<LongWritable, FastqReadBlock> createRecordReader(InputSplit split, TaskAttemptContext context) {
+        return new FastqRecordReader();
+    }
+
+    /**
+     * uncompressed and BGZF compressed files can be split
+     */
+    @Override
+    protected boolean isSplitable(JobContext context, Path file) {
+        CompressionCodec codec = new CompressionCodecFactory(context.getConfiguration()).getCodec(file);
+        if(codec == null)
+            return true;
+        try {
+            return isBGZF(file.getFileSystem(context.getConfiguration()), file);
+        } catch (IOException ex) {
+            Logger.EXCEPTION(ex);
+            return false;
+        }
+    }
+
+    protected static boolean isBGZF(FileSystem fs, Path file) throws IOException {
+        InputStream in = new BufferedInputStream(fs.open(file));
+        try {
+            return BlockCompressedInputStream.isValidFile(in);
+        } finally {
+            in.close();
+        }
+    }
+    
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.mapreduce;
+
+import be.ugent.intec.halvade.hadoop.datatypes.FastqReadBlock;
+import be.ugent.intec.halvade.utils.HalvadeConf;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.seqdoop.hadoop_bam.util.BGZFSplitGuesser;
+import org.seqdoop.hadoop_bam.util.WrapSeekable;
+
+/**
+ * reads an interleaved fastq file and returns a block of whole reads per value,
+ * for paired data a block always holds complete pairs
+ * the key is the position of the first read of the block in the file,
+ * a virtual file offset for BGZF files
+ *
+ * uncompressed and BGZF files can be split, a split starts at the first record
+ * (or pair) after the first newline in the split and reads every record of which
+ * the preceding newline lies before the end of the split
+ *
+ * @author ddecap
+ */
+public class FastqRecordReader extends RecordReader<LongWritable, FastqReadBlock> {
+    protected static final int BUFFER_SIZE = 1 << 16;
+    protected static final int MAX_RESYNC_LINES = 64;
+    protected static final long FILE_START = -1;
+    protected FSDataInputStream fileIn;
+    protected Decompressor decompressor;
+    protected InputStream in;
+    protected BlockCompressedInputStream bgzfIn;
+    protected long fileLength;
+    protected long start, end;
+    protected long streamPosition;
+    protected boolean finished;
+    protected int readsPerRecord;
+    protected boolean isPaired;
+    protected LongWritable key;
+    protected FastqReadBlock value;
+    protected Path file;
+
+    // line buffer, bufferStart is the position of buffer[0]
+    protected byte[] buffer;
+    protected int bufferPos, bufferLength;
+    protected long bufferStart;
+    protected long lastNewline;
+    // position of the newline before the current line
+    protected long linePosition;
+    protected Text line;
+    // lines read ahead to find the first record of the split
+    protected Text[] pending;
+    protected long[] pendingPosition;
+    protected int pendingStart, pendingCount;
+
+    @Override
+    public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException, InterruptedException {
+        FileSplit split = (FileSplit) genericSplit;
+        Configuration conf = context.getConfiguration();
+        file = split.getPath();
+        isPaired = HalvadeConf.getIsPaired(conf);
+        readsPerRecord = Math.max(1, HalvadeConf.getFastqReadsPerRecord(conf)) * (isPaired ? 2 : 1);
+        start = split.getStart();
+        end = start + split.getLength();
+        FileSystem fs = file.getFileSystem(conf);
+        fileLength = fs.getFileStatus(file).getLen();
+        fileIn = fs.open(file);
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(file);
+        line = new Text();
+        key = new LongWritable();
+        value = new FastqReadBlock();
+        buffer = new byte[BUFFER_SIZE];
+        bufferPos = bufferLength = 0;
+        lastNewline = FILE_START;
+        pending = new Text[2 * MAX_RESYNC_LINES];
+        pendingPosition = new long[pending.length];
+        pendingStart = pendingCount = 0;
+        finished = false;
+        if(codec == null) {
+            fileIn.seek(start);
+            in = fileIn;
+            streamPosition = start;
+        } else if(FastqInputFormat.isBGZF(fs, file)) {
+            long blockStart = start == 0 ? 0 : new BGZFSplitGuesser(fileIn).guessNextBGZFBlockStart(start, fileLength);
+            bgzfIn = new BlockCompressedInputStream(new WrapSeekable<FSDataInputStream>(fileIn, fileLength, file));
+            if(blockStart >= end)
+                finished = true;
+            else
+                bgzfIn.seek(blockStart << 16);
+        } else {
+            // other codecs can't be split, the file is read as a whole
+            decompressor = CodecPool.getDecompressor(codec);
+            in = codec.createInputStream(fileIn, decompressor);
+            streamPosition = 0;
+            end = Long.MAX_VALUE;
+        }
+        if(start != 0 && !finished)
+            resync();
+    }
+
+    /**
+     * skips the partial record (or pair) at the start of the split
+     */
+    protected void resync() throws IOException {
+        // the line after the first newline in the split is the first line that belongs to this split
+        if(!readRawLine(line)) {
+            finished = true;
+            return;
+        }
+        int scanned = 0;
+        while(true) {
+            if(!fillPending(4))
+                break;
+            if(isRecordStart()) {
+                if(!isPaired)
+                    return;
+                if(!fillPending(8))
+                    break;
+                // if the names differ this is the second read of a pair that started in the previous split
+                if(!isPairStart())
+                    dropPending(4);
+                return;
+            }
+            dropPending(1);
+            if(++scanned > MAX_RESYNC_LINES)
+                throw new IOException("no fastq record found in " + file + " after position " + start);
+        }
+        // no complete record or pair left, the remaining lines belong to the previous split
+        pendingCount = 0;
+        finished = true;
+    }
+
+    protected boolean isRecordStart() {
+        Text header = getPending(0), seq = getPending(1), plus = getPending(2), qual = getPending(3);
+        return header.getLength() > 0 && header.getBytes()[0] == '@'
+                && plus.getLength() > 0 && plus.getBytes()[0] == '+'
+                && seq.getLength() == qual.getLength();
+    }
+
+    protected boolean isPairStart() {
+        Text read1 = getPending(0), read2 = getPending(4);
+        int length1 = getReadNameLength(read1), length2 = getReadNameLength(read2);
+        if(length1 != length2)
+            return false;
+        for(int i = 1; i < length1; i++) {
+            if(read1.getBytes()[i] != read2.getBytes()[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * length of the name in the header without the /1 or /2 suffix
+     */
+    protected static int getReadNameLength(Text header) {
+        byte[] bytes = header.getBytes();
+        int length = 0;
+        while(length < header.getLength() && bytes[length] != ' ' && bytes[length] != '\t')
+            length++;
+        if(length > 2 && bytes[length - 2] == '/' && (bytes[length - 1] == '1' || bytes[length - 1] == '2'))
+            length -= 2;
+        return length;
+    }
+
+    protected Text getPending(int index) {
+        return pending[(pendingStart + index) % pending.length];
+    }
+
+    protected boolean fillPending(int count) throws IOException {
+        while(pendingCount < count) {
+            int index = (pendingStart + pendingCount) % pending.length;
+            if(pending[index] == null)
+                pending[index] = new Text();
+            do {
+                if(!readRawLine(pending[index]))
+                    return false;
+            } while(pending[index].getLength() == 0);
+            pendingPosition[index] = linePosition;
+            pendingCount++;
+        }
+        return true;
+    }
+
+    protected void dropPending(int count) {
+        pendingStart = (pendingStart + count) % pending.length;
+        pendingCount -= count;
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+        value.clear();
+        while(!finished && (value.getReadCount() < readsPerRecord || !value.isComplete())) {
+            if(!nextLine())
+                break;
+            if(value.isComplete()) {
+                if(line.getLength() == 0 || line.getBytes()[0] != '@')
+                    throw new IOException("malformed fastq record in " + file + " at position " + linePosition);
+                if((!isPaired || value.getReadCount() % 2 == 0) && !isInSplit(linePosition)) {
+                    finished = true;
+                    break;
+                }
+                if(value.getReadCount() == 0)
+                    key.set(linePosition + 1);
+            }
+            value.addLine(line);
+        }
+        if(!value.isComplete() || (isPaired && value.getReadCount() % 2 != 0))
+            throw new IOException("incomplete fastq record at the end of " + file);
+        return value.getReadCount() > 0;
+    }
+
+    protected boolean isInSplit(long position) {
+        if(position == FILE_START)
+            return true;
+        if(bgzfIn != null)
+            return (position >>> 16) < end;
+        return position < end;
+    }
+
+    protected boolean nextLine() throws IOException {
+        // empty lines between records are skipped
+        do {
+            if(pendingCount > 0) {
+                line.set(getPending(0));
+                linePosition = pendingPosition[pendingStart];
+                dropPending(1);
+            } else if(!readRawLine(line))
+                return false;
+        } while(line.getLength() == 0 && value.isComplete());
+        return true;
+    }
+
+    /**
+     * reads the next line without the line terminator,
+     * linePosition is set to the position of the preceding newline
+     */
+    protected boolean readRawLine(Text text) throws IOException {
+        text.clear();
+        linePosition = lastNewline;
+        boolean found = false;
+        boolean hasData = false;
+        while(!found) {
+            if(bufferPos >= bufferLength && !fillBuffer())
+                break;
+            hasData = true;
+            int lineStart = bufferPos;
+            while(bufferPos < bufferLength && buffer[bufferPos] != '\n')
+                bufferPos++;
+            if(bufferPos > lineStart)
+                text.append(buffer, lineStart, bufferPos - lineStart);
+            if(bufferPos < bufferLength) {
+                found = true;
+                lastNewline = bufferStart + bufferPos;
+                bufferPos++;
+            }
+        }
+        int length = text.getLength();
+        if(length > 0 && text.getBytes()[length - 1] == '\r')
+            text.set(text.getBytes(), 0, length - 1);
+        return hasData;
+    }
+
+    protected boolean fillBuffer() throws IOException {
+        int read;
+        if(bgzfIn != null) {
+            // never read past the end of a block so positions in the buffer are virtual offsets
+            int available = bgzfIn.available();
+            // concatenated bgzip files contain empty blocks (the EOF marker of
+            // every part), only the end of the underlying file ends the input
+            while(available == 0) {
+                if(fileIn.getPos() >= fileLength)
+                    return false;
+                available = bgzfIn.available();
+            }
+            bufferStart = bgzfIn.getFilePointer();
+            read = bgzfIn.read(buffer, 0, Math.min(available, buffer.length));
+        } else {
+            bufferStart = streamPosition;
+            read = in.read(buffer);
+        }
+        if(read <= 0)
+            return false;
+        streamPosition += read;
+        bufferPos = 0;
+        bufferLength = read;
+        return true;
+    }
+
+    @Override
+    public LongWritable getCurrentKey() throws IOException, InterruptedException {
+        return key;
+    }
+
+    @Override
+    public FastqReadBlock getCurrentValue() throws IOException, InterruptedException {
+        return value;
+    }
+
+    @Override
+    public float getProgress() throws IOException, InterruptedException {
+        if(finished)
+            return 1.0f;
+        long position;
+        if(bgzfIn != null)
+            position = bufferStart >>> 16;
+        else if(end == Long.MAX_VALUE)
+            return fileLength == 0 ? 0.0f : Math.min(1.0f, fileIn.getPos() / (float)fileLength);
+        else
+            position = bufferStart;
+        if(end == start)
+            return 0.0f;
+        return Math.max(0.0f, Math.min(1.0f, (position - start) / (float)(end - start)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if(bgzfIn != null)
+                bgzfIn.close();
+            else if(in != null)
+                in.close();
+        } finally {
+            if(decompressor != null) {
+                CodecPool.returnDecompressor(decompressor);
+                decompressor = null;
+            }
+        }
+    }
+}
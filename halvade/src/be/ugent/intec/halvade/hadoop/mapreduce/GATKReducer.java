@@ -28,9 +28,11 @@ import be.ugent.intec.halvade.tools.PreprocessingTools;
 import be.ugent.intec.halvade.tools.ProcessException;
 import be.ugent.intec.halvade.tools.QualityException;
 import be.ugent.intec.halvade.utils.ChromosomeRange;
+import be.ugent.intec.halvade.utils.ChromosomeSplitter;
 import be.ugent.intec.halvade.utils.HalvadeFileUtils;
 import be.ugent.intec.halvade.utils.HalvadeConf;
 import be.ugent.intec.halvade.utils.Logger;
+import be.ugent.intec.halvade.utils.RawBAMWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -53,10 +55,15 @@ public abstract class GATKReducer extends HalvadeReducer {
     protected int containers;
     protected int tasksLeft;
     protected String gff;
+    protected ChromosomeSplitter splitter;
+    protected int regionKey;
 
     @Override
     protected void reduce(ChromosomeRegion key, Iterable<SAMRecordWritable> values, Context context) throws IOException, InterruptedException {
         super.reduce(key, values, context);
+        if(replanned)
+            return;
+        regionKey = key.getReduceNumber();
         try {
             Logger.DEBUG("Processing key: " + key);
             // wrappers to call external programs
@@ -89,6 +96,12 @@ public abstract class GATKReducer extends HalvadeReducer {
             Logger.EXCEPTION(ex);
             throw new InterruptedException("Error when downloading GFF file");
         }
+        try {
+            splitter = new ChromosomeSplitter(HalvadeConf.getBedRegions(context.getConfiguration()), context.getConfiguration());
+        } catch (URISyntaxException ex) {
+            Logger.EXCEPTION(ex);
+            throw new InterruptedException("Error when reading the regions file");
+        }
         filterBedFile = HalvadeConf.getFilterBed(context.getConfiguration());
         filterDBsnp = HalvadeConf.getFilterDBSnp(context.getConfiguration());
         useUnifiedGenotyper = HalvadeConf.getUseUnifiedGenotyper(context.getConfiguration());
@@ -154,19 +167,17 @@ public abstract class GATKReducer extends HalvadeReducer {
         String tmpOut3 = tmpFileBase + "-p3.sam";
         String fCounts = tmpFileBase + "-features.count";
         String tmpMetrics = tmpFileBase + "-p3-metrics.txt";
-        SAMFileWriterFactory factory = new SAMFileWriterFactory();
         if (!inputIsBam) {
             outHeader.addReadGroup(bamrg);
         }
-        SAMFileWriter writer = factory.makeBAMWriter(outHeader, true, new File(tmpOut1));
+        // records are written as they came from the shuffle, without decoding them
+        RawBAMWriter writer = new RawBAMWriter(new File(tmpOut1), outHeader);
 
         long startTime = System.currentTimeMillis();
 
         int count = 0;
-        SAMRecord sam;
         while (input.hasNext()) {
-            sam = input.next();
-            writer.addAlignment(sam);
+            writer.addAlignment(input.nextEncoded());
             count++;
         }
         int reads = count;
@@ -242,6 +253,22 @@ public abstract class GATKReducer extends HalvadeReducer {
         return region;
     }
 
+    /**
+     * the reads of a region with an overlap margin also cover the regions next to it, 
+     * the variants are only called in the region itself so every variant is called once
+     * @return the region file to call the variants in, or null if the reads leave nothing to call
+     */
+    protected String makeCallingRegionFile(Context context, ChromosomeRange r, PreprocessingTools tools, String region) throws URISyntaxException, IOException, InterruptedException {
+        if(!splitter.hasOverlap(regionKey))
+            return region;
+        ChromosomeRange owned = splitter.getOwnedRange(regionKey, r);
+        if(owned.isEmpty()) {
+            Logger.DEBUG("all reads are in the overlap margins, no vcf results");
+            return null;
+        }
+        return makeRegionFile(context, owned, tools, tmpFileBase + "-calling.intervals");
+    }
+
     protected void indelRealignment(Context context, String region, GATKTools gatk, String input, String output) throws InterruptedException {
         String targets = tmpFileBase + ".intervals";
 
@@ -23,6 +23,7 @@ package be.ugent.intec.halvade.hadoop.mapreduce;
 public enum HalvadeCounters {
     TIME_BWA_ALN,
     TIME_BWA_MEM,
+    TIME_BWA_REF,
     TIME_BOWTIE2,
     TIME_CUSHAW2,
     TIME_BWA_SAMPE,
@@ -44,6 +45,12 @@ public enum HalvadeCounters {
     TIME_GATK_PRINT_READS, 
     TIME_GATK_COMBINE_VCF,
     TIME_GATK_VARIANT_CALLER,
+    TIME_SAM_READER_STALL,
+    TIME_SAM_EMITTER_STALL,
+    TIME_FEEDER_INPUT_STALL,
+    TIME_FEEDER_PIPE_BLOCKED,
+    TIME_ALIGNER_IDLE,
+    TIME_REF_PREFETCH,
     
     IN_BWA_READS,
     IN_PREP_READS,
@@ -53,6 +60,9 @@ public enum HalvadeCounters {
     OUT_UNMAPPED_READS,
     OUT_DIFF_CHR_READS,
     OUT_OVERLAPPING_READS,
+    OUT_REPLAN_READS,
+    
+    MAX_SAM_QUEUE_DEPTH,
     
     FOUT_BWA_TMP,
     FOUT_STAR_TMP,
@@ -6,6 +6,7 @@
 
 package be.ugent.intec.halvade.hadoop.mapreduce;
 
+import be.ugent.intec.halvade.hadoop.datatypes.FastqReadBlock;
 import be.ugent.intec.halvade.tools.AlignerInstance;
 import be.ugent.intec.halvade.utils.Logger;
 import be.ugent.intec.halvade.utils.HalvadeConf;
@@ -17,12 +18,11 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
 
 //ChromosomeRegion, SAMRecordWritable
-public class HalvadeMapper<T1, T2> extends Mapper<LongWritable, Text, T1, T2> {
-    protected int count, readcount;
+public class HalvadeMapper<T1, T2> extends Mapper<LongWritable, FastqReadBlock, T1, T2> {
+    protected int readcount;
     protected AlignerInstance instance;
     protected boolean allTasksHaveStarted;
 
@@ -33,6 +33,8 @@ public class HalvadeMapper<T1, T2> extends Mapper<LongWritable, Text, T1, T2> {
             Logger.DEBUG(readcount + " fastq reads processed");
             Logger.DEBUG("starting cleanup: closing aligner");
             instance.closeAligner();
+            instance.logOverlappingReads();
+            instance.closeMapOutput();
             Logger.DEBUG("finished cleanup");
             allTasksHaveStarted = HalvadeConf.allTasksCompleted(context.getConfiguration());
         } catch (URISyntaxException ex) {
@@ -42,19 +44,15 @@ public class HalvadeMapper<T1, T2> extends Mapper<LongWritable, Text, T1, T2> {
     
 
     @Override
-    protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-        if(count % 4 == 0) {
-            context.getCounter(HalvadeCounters.IN_BWA_READS).increment(1);
-            readcount++;
-        }
-        count++;
+    protected void map(LongWritable key, FastqReadBlock value, Context context) throws IOException, InterruptedException {
+        context.getCounter(HalvadeCounters.IN_BWA_READS).increment(value.getReadCount());
+        readcount += value.getReadCount();
     }
 
     @Override
     protected void setup(Context context) throws IOException, InterruptedException {
         super.setup(context);
         try {
-            count = 0;
             readcount = 0;
             // add a file to distributed cache representing this task
             String taskId = context.getTaskAttemptID().toString();
@@ -7,10 +7,12 @@
 package be.ugent.intec.halvade.hadoop.mapreduce;
 
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
+import be.ugent.intec.halvade.tools.BWAMemInstance;
 import be.ugent.intec.halvade.tools.GATKTools;
 import be.ugent.intec.halvade.utils.HalvadeFileUtils;
 import be.ugent.intec.halvade.utils.Logger;
 import be.ugent.intec.halvade.utils.HalvadeConf;
+import be.ugent.intec.halvade.utils.ReferencePrefetcher;
 import org.seqdoop.hadoop_bam.SAMRecordWritable;
 import org.seqdoop.hadoop_bam.VariantContextWritable;
 import java.io.File;
@@ -62,49 +64,58 @@ public class HalvadeReducer extends Reducer<ChromosomeRegion, SAMRecordWritable,
     protected boolean inputIsBam = false;
     protected SAMReadGroupRecord bamrg;
     protected String outputdir;
+    protected ReferencePrefetcher prefetcher;
+    protected boolean replanned = false;
     
     @Override
     protected void cleanup(Context context) throws IOException, InterruptedException {
-        super.cleanup(context);
-        Logger.DEBUG("count: " + count);
-        String output = null;
-        if(variantFiles.size() > 1) { // should not happen -> multiple keys per reducer
-            GATKTools gatk = new GATKTools(ref, bin);
-            gatk.setThreads(threads);
-            gatk.setContext(context);
-            if(java !=null) gatk.setJava(java);
-            output = tmp + context.getTaskAttemptID().toString() + ".vcf";
-            Logger.DEBUG("run CombineVariants");
-            gatk.runCombineVariants(variantFiles.toArray(new String[variantFiles.size()]), 
-                    output, ref);
-            context.getCounter(HalvadeCounters.TOOLS_GATK).increment(1);
-        } else if (variantFiles.size() == 1) {
-            output = variantFiles.get(0);
-        }
-        if(output != null && checkVcfIsNotEmpty(output)) {        
-            try {
-                HalvadeFileUtils.uploadFileToHDFS(context, FileSystem.get(new URI(outputdir), context.getConfiguration()),
-                        output, outputdir + context.getTaskAttemptID().toString() + ".vcf");
-                HalvadeFileUtils.uploadFileToHDFS(context, FileSystem.get(new URI(outputdir), context.getConfiguration()), 
-                        output + ".idx", outputdir + context.getTaskAttemptID().toString() + ".vcf.idx");
-            } catch (URISyntaxException ex) {
-                Logger.EXCEPTION(ex);
-                throw new InterruptedException();
+        try {
+            super.cleanup(context);
+            Logger.DEBUG("count: " + count);
+            String output = null;
+            if(variantFiles.size() > 1) { // should not happen -> multiple keys per reducer
+                GATKTools gatk = new GATKTools(ref, bin);
+                gatk.setThreads(threads);
+                gatk.setContext(context);
+                if(java !=null) gatk.setJava(java);
+                output = tmp + context.getTaskAttemptID().toString() + ".vcf";
+                Logger.DEBUG("run CombineVariants");
+                gatk.runCombineVariants(variantFiles.toArray(new String[variantFiles.size()]), 
+                        output, ref);
+                context.getCounter(HalvadeCounters.TOOLS_GATK).increment(1);
+            } else if (variantFiles.size() == 1) {
+                output = variantFiles.get(0);
+            }
+            if(output != null && checkVcfIsNotEmpty(output)) {        
+                try {
+                    FileSystem fs = FileSystem.get(new URI(outputdir), context.getConfiguration());
+                    String vcf = outputdir + context.getTaskAttemptID().toString() + ".vcf";
+                    HalvadeFileUtils.uploadFileToHDFS(context, fs, output + ".idx", vcf + ".idx");
+                    // the combine step only reads .vcf files, a killed attempt leaves no partial vcf
+                    HalvadeFileUtils.uploadFileToHDFS(context, fs, output, vcf + ".tmp");
+                    if(!fs.rename(new Path(vcf + ".tmp"), new Path(vcf)))
+                        throw new IOException("failed to rename " + vcf + ".tmp");
+                } catch (URISyntaxException ex) {
+                    Logger.EXCEPTION(ex);
+                    throw new InterruptedException();
+                }
+            } else if (output !=null) {
+                Logger.DEBUG("empty vcf file, not uploaded to vcf to avoid error when merging.");
             }
-        } else if (output !=null) {
-            Logger.DEBUG("empty vcf file, not uploaded to vcf to avoid error when merging.");
-        }
         
-        // delete the files from local scratch
-        if(variantFiles.size() > 1){
-            for(String snps : variantFiles){
-                HalvadeFileUtils.removeLocalFile(keep, snps, context, HalvadeCounters.FOUT_GATK_VCF);
-                HalvadeFileUtils.removeLocalFile(keep, snps + ".idx");
+            // delete the files from local scratch
+            if(variantFiles.size() > 1){
+                for(String snps : variantFiles){
+                    HalvadeFileUtils.removeLocalFile(keep, snps, context, HalvadeCounters.FOUT_GATK_VCF);
+                    HalvadeFileUtils.removeLocalFile(keep, snps + ".idx");
+                }
             }
-        }
-        if(output != null) {
-            HalvadeFileUtils.removeLocalFile(keep, output, context, HalvadeCounters.FOUT_GATK_VCF);
-            HalvadeFileUtils.removeLocalFile(keep, output + ".idx");
+            if(output != null) {
+                HalvadeFileUtils.removeLocalFile(keep, output, context, HalvadeCounters.FOUT_GATK_VCF);
+                HalvadeFileUtils.removeLocalFile(keep, output + ".idx");
+            }
+        } finally {
+            prefetcher.close();
         }
     }
     
@@ -141,6 +152,16 @@ public class HalvadeReducer extends Reducer<ChromosomeRegion, SAMRecordWritable,
         taskId = context.getTaskAttemptID().toString();
         taskId = taskId.substring(taskId.indexOf("r_"));
         taskNr = Integer.parseInt(taskId.split("_")[1]);
+        try {
+            replanned = HalvadeConf.isReducerReplanned(context.getConfiguration(), taskNr);
+        } catch (URISyntaxException ex) {
+            Logger.EXCEPTION(ex);
+        }
+        if(replanned)
+            Logger.INFO("the regions of this reducer are processed by the replan job, skipping all keys");
+        // the fasta is read into the page cache while the first region is preprocessed
+        prefetcher = new ReferencePrefetcher(context, ReferencePrefetcher.GATK, taskId);
+        prefetcher.start();
         outputdir = HalvadeConf.getOutDir(context.getConfiguration());
         if(inputIsBam) {
             header = SAMHeaderReader.readSAMHeaderFrom(new Path(HalvadeConf.getHeaderFile(context.getConfiguration())), context.getConfiguration());
@@ -157,12 +178,9 @@ public class HalvadeReducer extends Reducer<ChromosomeRegion, SAMRecordWritable,
         count = 0;
         variantFiles = new ArrayList<>();
         bin  = checkBinaries(context);
-        try {
-            ref = HalvadeFileUtils.downloadGATKIndex(context, taskId);
-        } catch (URISyntaxException ex) {
-            Logger.EXCEPTION(ex);
-            throw new InterruptedException();
-        }
+        // all map tasks are done, the aligner index isn't needed anymore on this node
+        BWAMemInstance.unloadSharedMemoryIndex(context, bin);
+        ref = prefetcher.getReference();
     }
     
     protected void getReadGroupData(Configuration conf) {
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.mapreduce;
+
+import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
+import be.ugent.intec.halvade.hadoop.datatypes.EncodedSAMRecordWritable;
+import be.ugent.intec.halvade.utils.ChromosomeSplitter;
+import be.ugent.intec.halvade.utils.HalvadeConf;
+import be.ugent.intec.halvade.utils.Logger;
+import htsjdk.samtools.SAMSequenceDictionary;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+
+/**
+ * counts the aligned reads of the sample per bin of every contig,
+ * the output has the format of the read counts file (contig:start-end\tcount)
+ * that the chromosome splitter uses to make regions with the same number of reads.
+ * a read is sent to the regions of its mate and of the overlapping regions as well,
+ * it is only counted with the key of the region that contains its start
+ *
+ * @author ddecap
+ */
+public class ReadCountReducer extends Reducer<ChromosomeRegion, EncodedSAMRecordWritable, Text, LongWritable> {
+    public static final int BIN_SIZE = 10000;
+    protected SAMSequenceDictionary dict;
+    protected ChromosomeSplitter splitter;
+    protected long[][] counts;
+    protected long reads;
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+        dict = HalvadeConf.getSequenceDictionary(context.getConfiguration());
+        try {
+            splitter = new ChromosomeSplitter(HalvadeConf.getBedRegions(context.getConfiguration()), context.getConfiguration());
+        } catch (URISyntaxException ex) {
+            Logger.EXCEPTION(ex);
+            throw new InterruptedException();
+        }
+        counts = new long[dict.size()][];
+        for(int i = 0; i < dict.size(); i++)
+            counts[i] = new long[dict.getSequence(i).getSequenceLength() / BIN_SIZE + 1];
+        reads = 0;
+    }
+
+    @Override
+    protected void reduce(ChromosomeRegion key, Iterable<EncodedSAMRecordWritable> values, Context context) throws IOException, InterruptedException {
+        for(EncodedSAMRecordWritable record : values) {
+            int ref = record.getReferenceIndex();
+            int pos = record.getAlignmentStart() - 1;
+            if(ref >= 0 && ref < counts.length && pos >= 0
+                    && splitter.getPrimaryRegion(ref, record.getAlignmentStart()) == key.getReduceNumber()) {
+                counts[ref][Math.min(pos / BIN_SIZE, counts[ref].length - 1)]++;
+                reads++;
+            }
+        }
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+        Logger.DEBUG("counted " + reads + " aligned reads of the sample");
+        Text bin = new Text();
+        LongWritable count = new LongWritable();
+        for(int i = 0; i < counts.length; i++) {
+            String contig = dict.getSequence(i).getSequenceName();
+            int length = dict.getSequence(i).getSequenceLength();
+            for(int j = 0; j < counts[i].length; j++) {
+                int start = j * BIN_SIZE;
+                int end = j + 1 == counts[i].length ? length + 1 : start + BIN_SIZE;
+                bin.set(contig + ":" + start + "-" + end);
+                // every bin gets a read so the regions cover bins without sampled reads
+                count.set(counts[i][j] + 1);
+                context.write(bin, count);
+            }
+        }
+    }
+}
@@ -121,9 +121,13 @@ public class RebuildStarGenomeReducer extends Reducer<GenomeSJ, Text, LongWritab
             Logger.DEBUG("Uploading STAR genome to parallel filesystem...");
             fs.mkdirs(new Path(pass2GenDir));
             File[] genFiles = starOut.listFiles();
-            for(File gen : genFiles) {
-                HalvadeFileUtils.uploadFileToHDFS(context, fs, gen.getAbsolutePath(), pass2GenDir + gen.getName());
+            String[] from = new String[genFiles.length];
+            String[] to = new String[genFiles.length];
+            for(int i = 0; i < genFiles.length; i++) {
+                from[i] = genFiles[i].getAbsolutePath();
+                to[i] = pass2GenDir + genFiles[i].getName();
             }
+            HalvadeFileUtils.uploadFilesToHDFS(context, fs, from, to);
             Logger.DEBUG("Finished uploading new reference to " + pass2GenDir);
         }
         HalvadeFileUtils.removeLocalFile(mergeJS);
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.mapreduce;
+
+import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
+import be.ugent.intec.halvade.hadoop.datatypes.EncodedSAMRecordWritable;
+import be.ugent.intec.halvade.utils.ChromosomeSplitter;
+import be.ugent.intec.halvade.utils.HalvadeConf;
+import be.ugent.intec.halvade.utils.Logger;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import org.apache.hadoop.mapreduce.Mapper;
+
+/**
+ * reads the map output that the Halvade job kept and sends the reads of the replanned regions 
+ * to their new keys, the reads of all other regions get no key and are dropped
+ *
+ * @author ddecap
+ */
+public class ReplanMapper extends Mapper<ChromosomeRegion, EncodedSAMRecordWritable, ChromosomeRegion, EncodedSAMRecordWritable> {
+    protected static final int READ_PAIRED_FLAG = 0x1;
+    protected ChromosomeSplitter splitter;
+    protected ChromosomeRegion region;
+    protected int[] keys;
+
+    @Override
+    protected void map(ChromosomeRegion key, EncodedSAMRecordWritable value, Context context) throws IOException, InterruptedException {
+        int read1Ref = value.getReferenceIndex();
+        // a paired read was also sent to the regions of its mate
+        int read2Ref = (value.getFlags() & READ_PAIRED_FLAG) != 0 ? value.getMateReferenceIndex() : -1;
+        int keyCount = splitter.getRegions(value, read1Ref, read2Ref, keys);
+        for(int i = 0; i < keyCount; i++) {
+            region.setChromosomeRegion(read1Ref, value.getAlignmentStart(), keys[i]);
+            context.write(region, value);
+        }
+        if(keyCount > 0)
+            context.getCounter(HalvadeCounters.OUT_REPLAN_READS).increment(1);
+    }
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+        super.setup(context);
+        try {
+            splitter = new ChromosomeSplitter(HalvadeConf.getBedRegions(context.getConfiguration()), context.getConfiguration());
+        } catch (URISyntaxException ex) {
+            Logger.EXCEPTION(ex);
+            throw new InterruptedException();
+        }
+        region = new ChromosomeRegion();
+        keys = new int[ChromosomeSplitter.MAX_KEYS];
+    }
+}
@@ -53,7 +53,14 @@ public class RnaGATKReducer extends GATKReducer {
         splitNTrim(context, region, gatk, preprocess, tmpFile1);
         indelRealignment(context, region, gatk, tmpFile1, tmpFile2);        
         baseQualityScoreRecalibration(context, region, r, tools, gatk, tmpFile2, tmpFile3);        
-        RnaVariantCalling(context, region, gatk, tmpFile3, snps);
+        String callingRegion = makeCallingRegionFile(context, r, tools, region);
+        if(callingRegion == null) {
+            HalvadeFileUtils.removeLocalFile(keep, tmpFile3, context, HalvadeCounters.FOUT_GATK_TMP);
+            HalvadeFileUtils.removeLocalFile(keep, tmpFile3.replaceAll(".bam", ".bai"));
+            HalvadeFileUtils.removeLocalFile(region);
+            return;
+        }
+        RnaVariantCalling(context, callingRegion, gatk, tmpFile3, snps);
         
 //        // filter/annotate??       
 //        windows = 35;
@@ -66,6 +73,8 @@ public class RnaGATKReducer extends GATKReducer {
         variantFiles.add(snps);
          
         HalvadeFileUtils.removeLocalFile(region);
+        if(!callingRegion.equals(region))
+            HalvadeFileUtils.removeLocalFile(callingRegion);
         long estimatedTime = System.currentTimeMillis() - startTime;
         Logger.DEBUG("total estimated time: " + estimatedTime / 1000);
     }
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.hadoop.mapreduce;
+
+import be.ugent.intec.halvade.hadoop.datatypes.FastqReadBlock;
+import be.ugent.intec.halvade.utils.HalvadeConf;
+import java.io.IOException;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * reads only the first reads of every split, used to align a sample of the input
+ * before the regions are made
+ *
+ * @author ddecap
+ */
+public class SampleFastqInputFormat extends FastqInputFormat {
+
+    @Override
+    public RecordReader<LongWritable, FastqReadBlock> createRecordReader(InputSplit split, TaskAttemptContext context) {
+        return new SampleFastqRecordReader();
+    }
+
+    public static class SampleFastqRecordReader extends FastqRecordReader {
+        protected long sampleReads;
+        protected long reads;
+
+        @Override
+        public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException, InterruptedException {
+            super.initialize(genericSplit, context);
+            sampleReads = HalvadeConf.getSampleReads(context.getConfiguration());
+            reads = 0;
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException, InterruptedException {
+            if(reads >= sampleReads || !super.nextKeyValue())
+                return false;
+            reads += value.getReadCount();
+            return true;
+        }
+
+        @Override
+        public float getProgress() throws IOException, InterruptedException {
+            return sampleReads == 0 ? 1.0f : Math.min(1.0f, reads / (float)sampleReads);
+        }
+    }
+}
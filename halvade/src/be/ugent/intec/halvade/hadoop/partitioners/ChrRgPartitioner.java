@@ -18,18 +18,49 @@
 package be.ugent.intec.halvade.hadoop.partitioners;
 
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
+import be.ugent.intec.halvade.utils.ChromosomeSplitter;
+import be.ugent.intec.halvade.utils.HalvadeConf;
+import be.ugent.intec.halvade.utils.Logger;
+import java.io.IOException;
+import java.net.URISyntaxException;
 import org.seqdoop.hadoop_bam.SAMRecordWritable;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.Partitioner;
 
 /**
+ * sends every region key to the reducer in the table of the splitter file, 
+ * keys that are not in the table are divided with a modulo
  *
  * @author ddecap
  */
-public class ChrRgPartitioner extends Partitioner<ChromosomeRegion, SAMRecordWritable> { 
+public class ChrRgPartitioner extends Partitioner<ChromosomeRegion, SAMRecordWritable> implements Configurable { 
+    protected Configuration conf;
+    protected int[] table;
     
     @Override
     public int getPartition(ChromosomeRegion key, SAMRecordWritable value, int numReduceTasks) {
-        return key.getReduceNumber() % numReduceTasks;
+        return ChromosomeSplitter.getReducer(table, key.getReduceNumber(), numReduceTasks);
+    }
+
+    @Override
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+        table = new int[0];
+        try {
+            String regions = HalvadeConf.getBedRegions(conf);
+            if(regions != null)
+                table = ChromosomeSplitter.getReducerTable(regions, conf);
+        } catch (URISyntaxException | IOException ex) {
+            // a modulo in some map tasks and the table in others sends a region to two reducers
+            Logger.EXCEPTION(ex);
+            throw new RuntimeException("failed to read the reducer table", ex);
+        }
+    }
+
+    @Override
+    public Configuration getConf() {
+        return conf;
     }
     
 }
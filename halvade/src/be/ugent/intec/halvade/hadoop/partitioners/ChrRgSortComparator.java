@@ -34,13 +34,16 @@ public class ChrRgSortComparator  extends WritableComparator {
     public int compare(WritableComparable a, WritableComparable b) {
         ChromosomeRegion r1 = (ChromosomeRegion) a;
         ChromosomeRegion r2 = (ChromosomeRegion) b;
-                
-        if(r1.getReduceNumber()== r2.getReduceNumber()) { 
-            if(r1.getChromosome() == r2.getChromosome()) // can have multiple chr in same region -> pairs send to multiple regions
-                return r1.getPosition() - r2.getPosition();
-            else 
-                return r1.getChromosome() - r2.getChromosome();
-        } else
-            return r1.getReduceNumber() - r2.getReduceNumber();  
+        // reduce number, chromosome and position are packed in that order, pairs send to multiple regions can have multiple chr in same region
+        return compareKeys(r1.getPackedKey(), r2.getPackedKey());
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        return compareKeys(readLong(b1, s1), readLong(b2, s2));
+    }
+
+    protected static int compareKeys(long k1, long k2) {
+        return k1 < k2 ? -1 : (k1 == k2 ? 0 : 1);
     }
 }
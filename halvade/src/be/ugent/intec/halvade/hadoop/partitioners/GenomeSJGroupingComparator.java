@@ -37,4 +37,9 @@ public class GenomeSJGroupingComparator extends WritableComparator {
         
         return sj2.getType()- sj1.getType();
     }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        return readInt(b2, s2 + GenomeSJ.TYPE_OFFSET) - readInt(b1, s1 + GenomeSJ.TYPE_OFFSET);
+    }
 }
@@ -36,4 +36,14 @@ public class GenomeSJSortComparator extends WritableComparator {
         GenomeSJ sj2 = (GenomeSJ) b;
         return sj1.compareTo(sj2); 
     }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        int type1 = readInt(b1, s1 + GenomeSJ.TYPE_OFFSET);
+        int type2 = readInt(b2, s2 + GenomeSJ.TYPE_OFFSET);
+        if(type1 == type2)
+            return readInt(b1, s1 + GenomeSJ.SECONDARY_KEY_OFFSET) - readInt(b2, s2 + GenomeSJ.SECONDARY_KEY_OFFSET);
+        else 
+            return type1 - type2;
+    }
 }
@@ -23,9 +23,13 @@ public class SimpleChrRegionComparator   extends WritableComparator {
     public int compare(WritableComparable a, WritableComparable b) {
         ChromosomeRegion r1 = (ChromosomeRegion) a;
         ChromosomeRegion r2 = (ChromosomeRegion) b;
-        if(r1.getChromosome() == r2.getChromosome())
-            return r1.getPosition() - r2.getPosition();
-        else 
-            return r1.getChromosome() - r2.getChromosome();
+        return ChrRgSortComparator.compareKeys(r1.getPackedKey() & ChromosomeRegion.CHROMOSOME_POSITION_MASK, 
+                r2.getPackedKey() & ChromosomeRegion.CHROMOSOME_POSITION_MASK);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        return ChrRgSortComparator.compareKeys(readLong(b1, s1) & ChromosomeRegion.CHROMOSOME_POSITION_MASK, 
+                readLong(b2, s2) & ChromosomeRegion.CHROMOSOME_POSITION_MASK);
     }
 }
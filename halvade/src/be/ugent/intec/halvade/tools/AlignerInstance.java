@@ -18,20 +18,42 @@
 package be.ugent.intec.halvade.tools;
 
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
+import be.ugent.intec.halvade.hadoop.datatypes.EncodedSAMRecordWritable;
+import be.ugent.intec.halvade.hadoop.datatypes.FastqReadBlock;
 import be.ugent.intec.halvade.hadoop.datatypes.GenomeSJ;
 import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
+import be.ugent.intec.halvade.utils.BAMStreamHandler;
 import be.ugent.intec.halvade.utils.ChromosomeSplitter;
+import be.ugent.intec.halvade.utils.CommandGenerator;
 import be.ugent.intec.halvade.utils.Logger;
 import be.ugent.intec.halvade.utils.HalvadeConf;
 import be.ugent.intec.halvade.utils.ProcessBuilderWrapper;
-import org.seqdoop.hadoop_bam.SAMRecordWritable;
+import be.ugent.intec.halvade.utils.ReadFeeder;
+import be.ugent.intec.halvade.utils.SAMStreamHandler;
+import be.ugent.intec.halvade.utils.StreamHandler;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
 
@@ -41,7 +63,7 @@ import org.apache.hadoop.mapreduce.Mapper;
  */
 public abstract class AlignerInstance {
     protected SAMFileHeader header;
-    protected SAMRecordWritable writableRecord;
+    protected EncodedSAMRecordWritable writableRecord;
     protected ChromosomeRegion writableRegion;
     protected GenomeSJ writeableCompactRegion;
     protected Text stub;
@@ -58,9 +80,23 @@ public abstract class AlignerInstance {
     protected boolean keepChrSplitPairs;
     protected boolean keep = false;
     protected ChromosomeSplitter splitter;
+    protected int[] keys;
     protected int containers;
     protected int tasksLeft;
     protected boolean redistribute;
+    protected boolean useBamStream;
+    protected ReadFeeder feeder;
+    // reads that cross or reach into a boundary, indexed by the boundary number of the splitter
+    protected long[] overlappingReads;
+    // a copy of the map output for the replan job, only kept when stragglers can be replanned
+    protected SequenceFile.Writer mapOutput;
+    protected String mapOutputFile;
+    protected static final int LOGGED_BOUNDARIES = 20;
+    protected static final int FEED_BUFFER_SIZE = 1 << 20;
+    protected static final int FIFO_SLICE_SIZE = 1 << 14;
+    protected static final long FIFO_OPEN_POLL_MS = 500;
+    public static final int UNMAPPED_READ = -1;
+    public static final int DIFF_CHR_READ = -2;
     
     
     protected AlignerInstance(Mapper.Context context, String bin) throws IOException, URISyntaxException {
@@ -69,7 +105,7 @@ public abstract class AlignerInstance {
         containers = HalvadeConf.getMapContainerCount(context.getConfiguration());
         tasksLeft = HalvadeConf.getMapTasksLeft(context.getConfiguration());
         redistribute = HalvadeConf.getRedistribute(context.getConfiguration());
-        writableRecord = new SAMRecordWritable();
+        writableRecord = new EncodedSAMRecordWritable();
         writableRegion = new ChromosomeRegion();
         writeableCompactRegion = new GenomeSJ();
         stub = new Text();
@@ -85,76 +121,373 @@ public abstract class AlignerInstance {
         isPaired = HalvadeConf.getIsPaired(context.getConfiguration());
         Logger.DEBUG("paired? " + isPaired);
         splitter = new ChromosomeSplitter(HalvadeConf.getBedRegions(context.getConfiguration()), context.getConfiguration());
+        keys = new int[ChromosomeSplitter.MAX_KEYS];
+        overlappingReads = new long[splitter.getBoundaryCount()];
         keepChrSplitPairs = HalvadeConf.getkeepChrSplitPairs(context.getConfiguration());
         keep = HalvadeConf.getKeepFiles(context.getConfiguration());
+        useBamStream = HalvadeConf.getUseBamStream(context.getConfiguration());
+        openMapOutput();
+    }
+    
+    /**
+     * every read is written once, the replan job makes the keys of its own regions
+     */
+    protected void openMapOutput() throws IOException, URISyntaxException {
+        String dir = HalvadeConf.getMapOutputDir(context.getConfiguration());
+        if(dir == null)
+            return;
+        // hidden files are not read as input until the attempt is complete
+        mapOutputFile = dir + "_" + context.getTaskAttemptID().toString();
+        FileSystem fs = FileSystem.get(new URI(dir), context.getConfiguration());
+        mapOutput = SequenceFile.createWriter(context.getConfiguration(), 
+                SequenceFile.Writer.file(fs.makeQualified(new Path(mapOutputFile))),
+                SequenceFile.Writer.keyClass(ChromosomeRegion.class),
+                SequenceFile.Writer.valueClass(EncodedSAMRecordWritable.class),
+                SequenceFile.Writer.compression(SequenceFile.CompressionType.BLOCK));
+    }
+    
+    /**
+     * the output of a complete attempt gets the name of its task, 
+     * the output of a second attempt of the same task is removed so no read is used twice
+     */
+    public void closeMapOutput() throws IOException, URISyntaxException {
+        if(mapOutput == null)
+            return;
+        mapOutput.close();
+        mapOutput = null;
+        String dir = HalvadeConf.getMapOutputDir(context.getConfiguration());
+        FileSystem fs = FileSystem.get(new URI(dir), context.getConfiguration());
+        Path taskFile = new Path(dir + context.getTaskAttemptID().getTaskID().toString());
+        if(!fs.rename(new Path(mapOutputFile), taskFile)) {
+            Logger.DEBUG("the map output of " + taskFile.getName() + " is already kept");
+            fs.delete(new Path(mapOutputFile), false);
+        }
+    }
+    
+    /**
+     * the aligner output goes through samtools to get BAM if the BAM stream is used
+     */
+    protected String[] getStreamCommand(String[] command) {
+        if(useBamStream)
+            return CommandGenerator.pipeToBAM(bin, command);
+        else 
+            return command;
+    }
+    
+    /**
+     * thread that writes the aligned reads on stdout of the aligner to the context
+     */
+    protected StreamHandler getStreamHandler(Mapper.Context context) {
+        if(useBamStream)
+            return new BAMStreamHandler(this, context);
+        else 
+            return new SAMStreamHandler(this, context, false);
     }
     
     protected void getIdleCores(Mapper.Context context) throws IOException {
         if(tasksLeft < containers ) threads = 6;
     }
     
-    protected int feedLine(String line, ProcessBuilderWrapper proc) throws IOException  {
+    /**
+     * hands the reads to the feeder thread that writes them to the aligner
+     */
+    public void feedReads(FastqReadBlock reads) throws IOException, InterruptedException {
+        if(feeder == null) {
+            feeder = new ReadFeeder(this, context);
+            feeder.start();
+        }
+        feeder.feed(reads);
+    }
+    
+    /**
+     * waits until the feeder wrote all reads, call before closing the input of the aligner
+     */
+    protected void closeFeeder() throws InterruptedException {
+        if(feeder == null)
+            return;
+        try {
+            feeder.close();
+        } catch (IOException ex) {
+            Logger.EXCEPTION(ex);
+            throw new ProcessException("read feeder", -1);
+        }
+        feeder = null;
+    }
+    
+    /**
+     * waits until the stream handler read all output of the aligner, an error in the handler fails the task
+     */
+    protected void finishStreamHandler(StreamHandler ssh) throws InterruptedException {
+        try {
+            ssh.finish();
+        } catch (IOException ex) {
+            Logger.EXCEPTION(ex);
+            throw new ProcessException("aligner output stream", -1);
+        }
+    }
+    
+    protected void checkProcess(ProcessBuilderWrapper proc) throws IOException  {
         if (proc.getState() != 1) {
-            Logger.DEBUG("writing \'" + line +"\' to process with state " + proc.getState());
+            Logger.DEBUG("writing to process with state " + proc.getState());
             throw new IOException("Error when writing to process with current state " + proc.getState());
         }
-        proc.getSTDINWriter().write(line, 0, line.length());
-        proc.getSTDINWriter().newLine();
-        return 0;
+    }
+    
+    /**
+     * writes all reads of the block, interleaved if paired
+     */
+    protected void writeReads(FastqReadBlock reads, ProcessBuilderWrapper proc) throws IOException  {
+        checkProcess(proc);
+        proc.getSTDINByteStream().write(reads.getBytes(), 0, reads.getLength());
+    }
+    
+    protected void writeRead(FastqReadBlock reads, int read, ProcessBuilderWrapper proc) throws IOException  {
+        checkProcess(proc);
+        reads.writeRead(read, proc.getSTDINByteStream());
+    }
+    
+    /**
+     * the mate of a read in the block, 1 or 2
+     */
+    protected int getMate(int read) {
+        return isPaired ? read % 2 + 1 : 1;
+    }
+    
+    protected OutputStream openFastqFile(String filename) throws IOException {
+        return new BufferedOutputStream(new FileOutputStream(filename), FEED_BUFFER_SIZE);
+    }
+    
+    protected void makeFifo(String fifo) throws InterruptedException {
+        File file = new File(fifo);
+        if(file.exists())
+            file.delete();
+        ProcessBuilderWrapper mkfifo = new ProcessBuilderWrapper(new String[]{"mkfifo", fifo}, null);
+        mkfifo.startProcess(null, System.err);
+        int error = mkfifo.waitForCompletion();
+        if(error != 0)
+            throw new ProcessException("mkfifo " + fifo, error);
+    }
+    
+    /**
+     * opens the write end of the fifos once the aligner opens them for reading,
+     * all fifos are opened at the same time as the aligner can open them in any order
+     */
+    protected OutputStream[] openFifos(final String[] fifos, ProcessBuilderWrapper proc) throws IOException, InterruptedException {
+        List<FutureTask<OutputStream>> open = new ArrayList<>(fifos.length);
+        for(int i = 0; i < fifos.length; i++) {
+            final String fifo = fifos[i];
+            FutureTask<OutputStream> task = new FutureTask<>(new Callable<OutputStream>() {
+                @Override
+                public OutputStream call() throws IOException {
+                    return new BufferedOutputStream(new FileOutputStream(fifo), FEED_BUFFER_SIZE);
+                }
+            });
+            open.add(task);
+            new Thread(task).start();
+        }
+        OutputStream[] streams = new OutputStream[fifos.length];
+        try {
+            for(int i = 0; i < fifos.length; i++) {
+                while(streams[i] == null) {
+                    try {
+                        streams[i] = open.get(i).get(FIFO_OPEN_POLL_MS, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException ex) {
+                        if(proc.getState() != 1) {
+                            releaseFifos(fifos, open);
+                            throw new ProcessException("aligner stopped before reading " + fifos[i], proc.getExitState());
+                        }
+                    }
+                }
+            }
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+        return streams;
+    }
+    
+    /**
+     * opens the read end of fifos nobody reads so the threads opening the write end return
+     */
+    protected void releaseFifos(String[] fifos, List<FutureTask<OutputStream>> open) throws IOException, InterruptedException {
+        for(int i = 0; i < fifos.length; i++) {
+            FileInputStream release = null;
+            if(!open.get(i).isDone())
+                release = new FileInputStream(fifos[i]);
+            try {
+                open.get(i).get().close();
+            } catch (ExecutionException ex) {
+                Logger.EXCEPTION(ex);
+            } finally {
+                if(release != null)
+                    release.close();
+            }
+        }
+    }
+    
+    /**
+     * writes the reads to the fifos of the aligner, for paired reads the aligner
+     * reads both fifos in lockstep so the mates are written in small slices,
+     * one fifo never gets far ahead of the other and neither write blocks forever
+     */
+    protected void feedFifos(FastqReadBlock reads, OutputStream mate1, OutputStream mate2) throws IOException {
+        if(!isPaired) {
+            mate1.write(reads.getBytes(), 0, reads.getLength());
+            return;
+        }
+        int read = 0;
+        while(read < reads.getReadCount()) {
+            int first = read;
+            int bytes = 0;
+            while(read < reads.getReadCount() && bytes < FIFO_SLICE_SIZE) {
+                reads.writeRead(read, mate1);
+                bytes += reads.getReadLength(read);
+                read += 2;
+            }
+            for(int i = first + 1; i < read; i += 2)
+                reads.writeRead(i, mate2);
+            mate1.flush();
+            mate2.flush();
+        }
     }
     
     public int writePairedSAMRecordToContext(SAMRecord sam, boolean useCompact) throws IOException, InterruptedException {
-        int count = 0;
+        return writeSAMRecordToContext(sam, keys, getPairedRegions(sam, keys), useCompact);
+    }
+    
+    public int writeSAMRecordToContext(SAMRecord sam, boolean useCompact) throws IOException, InterruptedException {
+        return writeSAMRecordToContext(sam, keys, getRegions(sam, keys), useCompact);
+    }
+    
+    /**
+     * fills keys with the regions of a paired read, doesn't change any state so it can be called from multiple threads
+     * @return the number of keys, UNMAPPED_READ or DIFF_CHR_READ if the read shouldn't be written
+     */
+    public int getPairedRegions(SAMRecord sam, int[] keys) {
         int read1Ref = sam.getReferenceIndex();
         int read2Ref = sam.getMateReferenceIndex();
         if (!sam.getReadUnmappedFlag() && (read1Ref == read2Ref || keepChrSplitPairs) && (read1Ref >= 0 || read2Ref >= 0)) {
+            return splitter.getRegions(sam, read1Ref, read2Ref, keys);
+        } else if(sam.getReadUnmappedFlag()) {
+            return UNMAPPED_READ;
+        } else 
+            return DIFF_CHR_READ;
+    }
+    
+    /**
+     * fills keys with the regions of a single read, doesn't change any state so it can be called from multiple threads
+     * @return the number of keys or UNMAPPED_READ if the read shouldn't be written
+     */
+    public int getRegions(SAMRecord sam, int[] keys) {
+        if (!sam.getReadUnmappedFlag())
+            return splitter.getRegions(sam, sam.getReferenceIndex(), keys);
+        else 
+            return UNMAPPED_READ;
+    }
+    
+    public int getPairedRegions(EncodedSAMRecordWritable record, int[] keys) throws IOException {
+        int read1Ref = record.getReferenceIndex();
+        int read2Ref = record.getMateReferenceIndex();
+        if (!record.getReadUnmappedFlag() && (read1Ref == read2Ref || keepChrSplitPairs) && (read1Ref >= 0 || read2Ref >= 0)) {
+            return splitter.getRegions(record, read1Ref, read2Ref, keys);
+        } else if(record.getReadUnmappedFlag()) {
+            return UNMAPPED_READ;
+        } else 
+            return DIFF_CHR_READ;
+    }
+    
+    public int getRegions(EncodedSAMRecordWritable record, int[] keys) throws IOException {
+        if (!record.getReadUnmappedFlag())
+            return splitter.getRegions(record, record.getReferenceIndex(), keys);
+        else 
+            return UNMAPPED_READ;
+    }
+    
+    /**
+     * writes a record that is already encoded, as read from a BAM stream
+     */
+    public int writeEncodedRecordToContext(EncodedSAMRecordWritable record, int[] keys, int keyCount) throws IOException, InterruptedException {
+        int count = 0;
+        if (keyCount >= 0) {
             context.getCounter(HalvadeCounters.OUT_BWA_READS).increment(1);
-            writableRecord.set(sam);
-            int beginpos = sam.getAlignmentStart();
-            HashSet<Integer> keys = splitter.getRegions(sam, read1Ref, read2Ref);
-            for(Integer key : keys) {
-                if(useCompact) {
-                    writeableCompactRegion.setRegion(key, beginpos);
-                    context.write(writeableCompactRegion, stub);
-                } else {
-                    writableRegion.setChromosomeRegion(read1Ref, beginpos, key);
-                    context.write(writableRegion, writableRecord);
-                }
+            int read1Ref = record.getReferenceIndex();
+            int beginpos = record.getAlignmentStart();
+            if(keyCount > 1)
+                countOverlappingRead(read1Ref, beginpos, record.getAlignmentEnd());
+            for(int i = 0; i < keyCount; i++) {
+                writableRegion.setChromosomeRegion(read1Ref, beginpos, keys[i]);
+                context.write(writableRegion, record);
                 count++;
             }
+            if(mapOutput != null && count > 0)
+                mapOutput.append(writableRegion, record);
+        } else if (keyCount == UNMAPPED_READ) {
+            context.getCounter(HalvadeCounters.OUT_UNMAPPED_READS).increment(1);
         } else {
-            if(sam.getReadUnmappedFlag()) 
-                context.getCounter(HalvadeCounters.OUT_UNMAPPED_READS).increment(1);
-            else
-                context.getCounter(HalvadeCounters.OUT_DIFF_CHR_READS).increment(1);
+            context.getCounter(HalvadeCounters.OUT_DIFF_CHR_READS).increment(1);
         }
         return count;
     }
     
-    public int writeSAMRecordToContext(SAMRecord sam, boolean useCompact) throws IOException, InterruptedException {
+    public int writeSAMRecordToContext(SAMRecord sam, int[] keys, int keyCount, boolean useCompact) throws IOException, InterruptedException {
         int count = 0;
-        if (!sam.getReadUnmappedFlag()){
-            int read1Ref = sam.getReferenceIndex();
+        if (keyCount >= 0) {
             context.getCounter(HalvadeCounters.OUT_BWA_READS).increment(1);
             writableRecord.set(sam);
+            int read1Ref = sam.getReferenceIndex();
             int beginpos = sam.getAlignmentStart();
-            HashSet<Integer> keys = splitter.getRegions(sam, read1Ref);
-            for(Integer key : keys) {
+            if(keyCount > 1)
+                countOverlappingRead(read1Ref, beginpos, sam.getAlignmentEnd());
+            for(int i = 0; i < keyCount; i++) {
                 if(useCompact) {
-                    writeableCompactRegion.setRegion(key, beginpos);
+                    writeableCompactRegion.setRegion(keys[i], beginpos);
                     context.write(writeableCompactRegion, stub);
                 } else {
-                    writableRegion.setChromosomeRegion(read1Ref, beginpos, key);
+                    writableRegion.setChromosomeRegion(read1Ref, beginpos, keys[i]);
                     context.write(writableRegion, writableRecord);
                 }
                 count++;
             }
-        } else {
+            if(mapOutput != null && count > 0 && !useCompact)
+                mapOutput.append(writableRegion, writableRecord);
+        } else if (keyCount == UNMAPPED_READ) {
             context.getCounter(HalvadeCounters.OUT_UNMAPPED_READS).increment(1);
+        } else {
+            context.getCounter(HalvadeCounters.OUT_DIFF_CHR_READS).increment(1);
         }
         return count;
     }
     
+    /**
+     * a read that overlaps a boundary is written to every region, the count per boundary is kept
+     * in the task log because there are too many boundaries for a counter each
+     */
+    protected void countOverlappingRead(int refIndex, int start, int end) {
+        context.getCounter(HalvadeCounters.OUT_OVERLAPPING_READS).increment(1);
+        // a read that only gets more keys through its mate doesn't overlap a boundary
+        int boundary = splitter.getBoundary(refIndex, start, end);
+        if(boundary >= 0)
+            overlappingReads[boundary]++;
+    }
+    
+    /**
+     * logs the boundaries with the most overlapping reads, the records are written by 
+     * a single thread that has finished when the aligner is closed
+     */
+    public void logOverlappingReads() {
+        Integer[] boundaries = new Integer[overlappingReads.length];
+        for(int i = 0; i < boundaries.length; i++)
+            boundaries[i] = i;
+        Arrays.sort(boundaries, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(overlappingReads[b], overlappingReads[a]);
+            }
+        });
+        for(int i = 0; i < boundaries.length && i < LOGGED_BOUNDARIES && overlappingReads[boundaries[i]] > 0; i++)
+            Logger.DEBUG("reads overlapping the boundary at " + splitter.getBoundaryName(boundaries[i]) 
+                    + ": " + overlappingReads[boundaries[i]]);
+    }
+    
     public SAMFileHeader getFileHeader() {
         return header;
     }
@@ -167,5 +500,6 @@ public abstract class AlignerInstance {
     public abstract int getState();
     public abstract InputStream getSTDOUTStream();
     public abstract void closeAligner() throws InterruptedException;
+    public abstract void writeReads(FastqReadBlock reads) throws IOException, InterruptedException;
     protected abstract void startAligner(Mapper.Context context) throws IOException, InterruptedException;
 }
@@ -17,18 +17,18 @@
 
 package be.ugent.intec.halvade.tools;
 
+import be.ugent.intec.halvade.hadoop.datatypes.FastqReadBlock;
 import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
+import be.ugent.intec.halvade.utils.StreamHandler;
 import be.ugent.intec.halvade.utils.CommandGenerator;
 import be.ugent.intec.halvade.utils.HalvadeFileUtils;
 import be.ugent.intec.halvade.utils.Logger;
 import be.ugent.intec.halvade.utils.HalvadeConf;
 import be.ugent.intec.halvade.utils.ProcessBuilderWrapper;
-import be.ugent.intec.halvade.utils.SAMStreamHandler;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 import org.apache.hadoop.mapreduce.Mapper;
 
@@ -42,9 +42,9 @@ public class BWAAlnInstance extends AlignerInstance {
     private ProcessBuilderWrapper reads1;
     private ProcessBuilderWrapper reads2;
     private ProcessBuilderWrapper samxe;
-    private SAMStreamHandler ssh;
-    private BufferedWriter fastqFile1;
-    private BufferedWriter fastqFile2;
+    private StreamHandler ssh;
+    private OutputStream fastqFile1;
+    private OutputStream fastqFile2;
     private String taskId;
     private String alnCustomArgs;
     
@@ -56,16 +56,17 @@ public class BWAAlnInstance extends AlignerInstance {
         alnCustomArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "bwa", "aln");
     }
     
-    public int feedLine(String line, int read) throws IOException, InterruptedException  {
-        if(read == 1 || !isPaired) {
-            fastqFile1.write(line + "\n");
-            return feedLine(line, reads1);
-        } else if (read == 2) {
-            fastqFile2.write(line + "\n");
-            if(threads > 1) return feedLine(line, reads2);
-            else return 0;
+    @Override
+    public void writeReads(FastqReadBlock reads) throws IOException, InterruptedException  {
+        for(int i = 0; i < reads.getReadCount(); i++) {
+            if(getMate(i) == 1) {
+                reads.writeRead(i, fastqFile1);
+                writeRead(reads, i, reads1);
+            } else {
+                reads.writeRead(i, fastqFile2);
+                if(threads > 1) writeRead(reads, i, reads2);
+            }
         }
-        return -1;
     }
     
     protected String getFileName(String dir, String id, boolean isSai, int read) {
@@ -106,7 +107,7 @@ public class BWAAlnInstance extends AlignerInstance {
         if (!file1.exists()) {
             file1.createNewFile();
         }
-        fastqFile1 = new BufferedWriter(new FileWriter(file1.getAbsoluteFile()));
+        fastqFile1 = openFastqFile(file1.getAbsolutePath());
         if(isPaired) {
             if(threads > 1) {
                 String[] command2 = CommandGenerator.bwaAln(bin, ref, "/dev/stdin", getFileName(tmpdir, taskId, true, 2), threadsToUse, alnCustomArgs);
@@ -120,7 +121,7 @@ public class BWAAlnInstance extends AlignerInstance {
             if (!file2.exists()) {
                     file2.createNewFile();
             }
-            fastqFile2 = new BufferedWriter(new FileWriter(file2.getAbsoluteFile()));
+            fastqFile2 = openFastqFile(file2.getAbsolutePath());
         }
         
     }
@@ -138,16 +139,17 @@ public class BWAAlnInstance extends AlignerInstance {
     }
     
     private void closeBWAAln() throws InterruptedException {
+        closeFeeder();
         try {
             // close the input stream
-            reads1.getSTDINWriter().flush();
-            reads1.getSTDINWriter().close();
+            reads1.getSTDINByteStream().flush();
+            reads1.getSTDINByteStream().close();
             fastqFile1.close();
             if(isPaired) {
                 fastqFile2.close();
                 if(threads > 1) {
-                    reads2.getSTDINWriter().flush();
-                    reads2.getSTDINWriter().close();
+                    reads2.getSTDINByteStream().flush();
+                    reads2.getSTDINByteStream().close();
                 }
             }
         } catch (IOException ex) {
@@ -184,13 +186,13 @@ public class BWAAlnInstance extends AlignerInstance {
                 getFileName(tmpdir, taskId, true, 2), 
                 getFileName(tmpdir, taskId, false, 2), 
                 isPaired, threads, customArgs);
-        samxe = new ProcessBuilderWrapper(command, bin);
+        samxe = new ProcessBuilderWrapper(getStreamCommand(command), bin);
         samxe.startProcess(null, System.err);     
         if(!samxe.isAlive())
             throw new ProcessException("BWA samXe", samxe.getExitState());   
         
         // make a SAMstream handler
-        ssh = new SAMStreamHandler(instance, context, false);
+        ssh = getStreamHandler(context);
         ssh.start();
     }
 
@@ -201,7 +203,7 @@ public class BWAAlnInstance extends AlignerInstance {
 
         // but now start sampe/samse
         startBWASamXe();
-        ssh.join();
+        finishStreamHandler(ssh);
         int error = samxe.waitForCompletion();
         if(error != 0)
             throw new ProcessException("BWA samXe", error);
@@ -234,8 +236,8 @@ public class BWAAlnInstance extends AlignerInstance {
     public void flushStream() {
         try {
             // close the input stream
-            reads1.getSTDINWriter().flush();
-            if(isPaired) reads2.getSTDINWriter().flush();
+            reads1.getSTDINByteStream().flush();
+            if(isPaired) reads2.getSTDINByteStream().flush();
         } catch (IOException ex) {
             Logger.EXCEPTION(ex);
         }
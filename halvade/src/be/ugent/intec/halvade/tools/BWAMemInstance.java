@@ -17,13 +17,18 @@
 
 package be.ugent.intec.halvade.tools;
 
+import be.ugent.intec.halvade.hadoop.datatypes.FastqReadBlock;
 import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import org.apache.hadoop.mapreduce.Mapper;
+import be.ugent.intec.halvade.utils.StreamHandler;
 import be.ugent.intec.halvade.utils.*;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import org.apache.hadoop.mapreduce.Mapper.Context;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 
 /**
  *
@@ -33,7 +38,11 @@ public class BWAMemInstance extends AlignerInstance {
     
     private static BWAMemInstance instance;
     private ProcessBuilderWrapper pbw;
-    private SAMStreamHandler ssh;
+    private StreamHandler ssh;
+    protected static final String SH_MEM_LOCK = "load_bwa_shm.lock";
+    // the lock file holds the path of the index that is loaded in shared memory on this node
+    private HalvadeFileLock bwa_shmem_lock;
+    private ReferencePrefetcher prefetcher;
     /**
      * 
      * This BWA instance runs BWA from stdin (custom provided BWA is needed)
@@ -42,28 +51,35 @@ public class BWAMemInstance extends AlignerInstance {
         super(context, bin);
         String taskid = context.getTaskAttemptID().toString();
         taskid = taskid.substring(taskid.indexOf("m_"));
-        ref = HalvadeFileUtils.downloadBWAIndex(context, taskid);
+        prefetcher = new ReferencePrefetcher(context, ReferencePrefetcher.BWA, taskid);
+        prefetcher.start();
     }
     
-    public int feedLine(String line) throws IOException  {
-        return feedLine(line, pbw);
+    @Override
+    public void writeReads(FastqReadBlock reads) throws IOException, InterruptedException  {
+        // bwa is started with the first reads so the mapper reads the input while the index is downloaded
+        if(pbw == null)
+            startAligner(context);
+        writeReads(reads, pbw);
     }
     
     @Override
     protected void startAligner(Mapper.Context context) throws IOException, InterruptedException {
+        ref = prefetcher.getReference();
+        attachSharedMemoryIndex();
         // make command
         String customArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "bwa", "mem");
         String[] command = CommandGenerator.bwaMem(bin, ref, null, null, isPaired, true, threads, customArgs);
-        pbw = new ProcessBuilderWrapper(command, bin);
+        pbw = new ProcessBuilderWrapper(getStreamCommand(command), bin);
         // run command
         // needs to be streamed to output otherwise the process blocks ...
         pbw.startProcess(null, System.err);
         // check if alive.
         if(!pbw.isAlive())
             throw new ProcessException("BWA mem", pbw.getExitState());
-        pbw.getSTDINWriter();
+        pbw.getSTDINByteStream();
         // make a SAMstream handler
-        ssh = new SAMStreamHandler(instance, context, false);
+        ssh = getStreamHandler(context);
         ssh.start();
     }
         
@@ -73,31 +89,130 @@ public class BWAMemInstance extends AlignerInstance {
      */
     @Override
     public int getState() {
-        return pbw.getState();
+        if (pbw != null)
+            return pbw.getState();
+        else 
+            return 1;
     }
 
     @Override
     public void closeAligner() throws InterruptedException {
         try {
-            // close the input stream
-            pbw.getSTDINWriter().flush();
-            pbw.getSTDINWriter().close();
-        } catch (IOException ex) {
+            closeFeeder();
+            if(pbw == null) // no reads in this task
+                return;
+            try {
+                // close the input stream
+                pbw.getSTDINByteStream().flush();
+                pbw.getSTDINByteStream().close();
+            } catch (IOException ex) {
+                Logger.EXCEPTION(ex);
+            }
+
+            int error = pbw.waitForCompletion();
+            context.getCounter(HalvadeCounters.TIME_BWA_MEM).increment(pbw.getExecutionTime());
+            if(error != 0)
+                throw new ProcessException("BWA mem", error);
+            finishStreamHandler(ssh);
+        } finally {
+            prefetcher.close();
+            instance = null;
+        }
+    }
+    
+    /**
+     * loads the index in shared memory if no other task on this node did,
+     * bwa mem uses the index in shared memory if it is there and loads it from disk otherwise.
+     * the index stays loaded for the next tasks, the reducers remove it when all tasks are done
+     */
+    protected void attachSharedMemoryIndex() throws IOException, InterruptedException {
+        bwa_shmem_lock = new HalvadeFileLock(context, HalvadeConf.getScratchTempDir(context.getConfiguration()), SH_MEM_LOCK);
+        try {
+            bwa_shmem_lock.getLock();
+            String loaded = readLoadedIndex(bwa_shmem_lock);
+            if(ref.equals(loaded)) {
+                Logger.DEBUG("index has been loaded into shared memory");
+                return;
+            }
+            try {
+                // an earlier job that didn't finish can have left another index
+                if(!loaded.isEmpty())
+                    loadSharedMemoryIndex(true);
+                writeLoadedIndex(bwa_shmem_lock, "");
+                loadSharedMemoryIndex(false);
+                writeLoadedIndex(bwa_shmem_lock, ref);
+            } catch (ProcessException ex) {
+                Logger.DEBUG("index not loaded in shared memory, bwa mem loads the index");
+                Logger.EXCEPTION(ex);
+            }
+        } finally {
+            bwa_shmem_lock.releaseLock();
+        }
+    }
+    
+    /**
+     * removes the index from shared memory on this node once no more map tasks of the job start,
+     * this is called when a reducer starts as all map tasks have finished by then
+     */
+    public static void unloadSharedMemoryIndex(TaskInputOutputContext<?, ?, ?, ?> context, String bin) throws IOException, InterruptedException {
+        String dir = HalvadeConf.getScratchTempDir(context.getConfiguration());
+        if(!new File(dir, SH_MEM_LOCK).exists())
+            return;
+        HalvadeFileLock lock = new HalvadeFileLock(context, dir, SH_MEM_LOCK);
+        boolean remove = false;
+        try {
+            lock.getLock();
+            String loaded = readLoadedIndex(lock);
+            if(!loaded.isEmpty()) {
+                runBwaShm(context, bin, loaded, true);
+                writeLoadedIndex(lock, "");
+                remove = true;
+            }
+        } catch (ProcessException ex) {
             Logger.EXCEPTION(ex);
+        } finally {
+            if(remove)
+                lock.removeAndReleaseLock();
+            else
+                lock.releaseLock();
         }
-                
-        int error = pbw.waitForCompletion();
-        context.getCounter(HalvadeCounters.TIME_BWA_MEM).increment(pbw.getExecutionTime());
+    }
+    
+    protected static String readLoadedIndex(HalvadeFileLock lock) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(4096);
+        int read = lock.read(bytes);
+        return read <= 0 ? "" : new String(bytes.array(), 0, read, "UTF-8").trim();
+    }
+    
+    protected static void writeLoadedIndex(HalvadeFileLock lock, String index) throws IOException {
+        // pad with spaces so nothing of a longer path that was there before remains
+        StringBuilder padded = new StringBuilder(index);
+        while(padded.length() < 4096)
+            padded.append(' ');
+        lock.forceWrite(ByteBuffer.wrap(padded.toString().getBytes("UTF-8"), 0, 4096));
+    }
+    
+    public void loadSharedMemoryIndex(boolean unload) throws InterruptedException {
+        runBwaShm(context, bin, ref, unload);
+    }
+    
+    protected static void runBwaShm(TaskInputOutputContext<?, ?, ?, ?> context, String bin, String ref, boolean unload) throws InterruptedException {
+        if(unload)  Logger.DEBUG("Remove ref [" + ref + "] from shared memory.");
+        else Logger.DEBUG("Load ref [" + ref + "] to shared memory");
+        String[] command = CommandGenerator.bwaShm(bin, ref, unload);
+        ProcessBuilderWrapper bwaShm = new ProcessBuilderWrapper(command, bin);
+        bwaShm.startProcess(System.out, System.err);
+        if(!bwaShm.isAlive())
+            throw new ProcessException("BWA shm", bwaShm.getExitState());
+        int error = bwaShm.waitForCompletion();
         if(error != 0)
-            throw new ProcessException("BWA mem", error);
-        ssh.join();
-        instance = null;
+            throw new ProcessException("BWA shm", error);
+        context.getCounter(HalvadeCounters.TIME_BWA_REF).increment(bwaShm.getExecutionTime());
     }
         
     static public BWAMemInstance getBWAInstance(Mapper.Context context, String bin) throws IOException, InterruptedException, URISyntaxException {
         if(instance == null) {
             instance = new BWAMemInstance(context, bin);
-            instance.startAligner(context);
         }
         BWAMemInstance.context = context;
         return instance;
@@ -111,9 +226,11 @@ public class BWAMemInstance extends AlignerInstance {
 
     @Override
     public void flushStream() {
+        if(pbw == null)
+            return;
         try {
             // close the input stream
-            pbw.getSTDINWriter().flush();
+            pbw.getSTDINByteStream().flush();
         } catch (IOException ex) {
             Logger.EXCEPTION(ex);
         }
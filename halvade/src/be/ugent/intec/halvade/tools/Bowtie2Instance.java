@@ -17,18 +17,18 @@
 
 package be.ugent.intec.halvade.tools;
 
+import be.ugent.intec.halvade.hadoop.datatypes.FastqReadBlock;
 import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
+import be.ugent.intec.halvade.utils.StreamHandler;
 import be.ugent.intec.halvade.utils.CommandGenerator;
 import be.ugent.intec.halvade.utils.HalvadeFileUtils;
 import be.ugent.intec.halvade.utils.Logger;
 import be.ugent.intec.halvade.utils.HalvadeConf;
 import be.ugent.intec.halvade.utils.ProcessBuilderWrapper;
-import be.ugent.intec.halvade.utils.SAMStreamHandler;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
+import be.ugent.intec.halvade.utils.ReferencePrefetcher;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 import org.apache.hadoop.mapreduce.Mapper;
 
@@ -40,27 +40,28 @@ public class Bowtie2Instance extends AlignerInstance {
     
     private static Bowtie2Instance instance;
     private ProcessBuilderWrapper bowtie2;
-    private SAMStreamHandler ssh;
-    private BufferedWriter fastqFile1;
-    private BufferedWriter fastqFile2;
+    private StreamHandler ssh;
+    private OutputStream fastqFifo1;
+    private OutputStream fastqFifo2;
     private String taskId;
     private String bowtie2CustomArgs;
+    private ReferencePrefetcher prefetcher;
     
     private Bowtie2Instance(Mapper.Context context, String bin) throws IOException, URISyntaxException {
         super(context, bin);  
         taskId = context.getTaskAttemptID().toString();
         taskId = taskId.substring(taskId.indexOf("m_"));
-        ref = HalvadeFileUtils.downloadBowtie2Index(context, taskId);
+        prefetcher = new ReferencePrefetcher(context, ReferencePrefetcher.BOWTIE2, taskId);
+        prefetcher.start();
         bowtie2CustomArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "bowtie2", "");
     }
     
-    public int feedLine(String line, int read) throws IOException, InterruptedException  {
-        if(read == 1 || !isPaired) {
-            fastqFile1.write(line + "\n");
-        } else if (read == 2) {
-            fastqFile2.write(line + "\n");
-        }
-        return 0;
+    @Override
+    public void writeReads(FastqReadBlock reads) throws IOException, InterruptedException  {
+        // bowtie2 is started with the first reads so the mapper reads the input while the index is downloaded
+        if(bowtie2 == null)
+            startAligner(context);
+        feedFifos(reads, fastqFifo1, fastqFifo2);
     }
     
     protected String getFileName(String dir, String id, int read) {
@@ -75,22 +76,36 @@ public class Bowtie2Instance extends AlignerInstance {
         
     @Override
     protected void startAligner(Mapper.Context context) throws IOException, InterruptedException {
+        ref = prefetcher.getReference();
         if(redistribute) {
             getIdleCores(context);
             Logger.DEBUG("Redistributing cores: using " + threads);
         }
-        File file1 = new File(getFileName(tmpdir, taskId, 1));
-        if (!file1.exists()) {
-            file1.createNewFile();
-        }
-        fastqFile1 = new BufferedWriter(new FileWriter(file1.getAbsoluteFile()));
-        if(isPaired) {
-            File file2 = new File(getFileName(tmpdir, taskId, 2));
-            if (!file2.exists()) {
-                    file2.createNewFile();
-            }
-            fastqFile2 = new BufferedWriter(new FileWriter(file2.getAbsoluteFile()));
-        }
+        // the reads are streamed to bowtie2 through named pipes
+        makeFifo(getFileName(tmpdir, taskId, 1));
+        if(isPaired)
+            makeFifo(getFileName(tmpdir, taskId, 2));
+        String[] command = CommandGenerator.bowtie2(bin, ref,
+                getFileName(tmpdir, taskId, 1), 
+                getFileName(tmpdir, taskId, 2), 
+                threads, bowtie2CustomArgs);
+        bowtie2 = new ProcessBuilderWrapper(getStreamCommand(command), bin);
+        bowtie2.startProcess(null, System.err);     
+        if(!bowtie2.isAlive())
+            throw new ProcessException("Bowtie2", bowtie2.getExitState());   
+        
+        // make a SAMstream handler
+        ssh = getStreamHandler(context);
+        ssh.start();
+        
+        String[] fifos = isPaired ? 
+                new String[]{getFileName(tmpdir, taskId, 1), getFileName(tmpdir, taskId, 2)} : 
+                new String[]{getFileName(tmpdir, taskId, 1)};
+        OutputStream[] streams = openFifos(fifos, bowtie2);
+        fastqFifo1 = streams[0];
+        if(isPaired)
+            fastqFifo2 = streams[1];
+        Logger.DEBUG("Started Bowtie2");
     }
         
     /**
@@ -107,50 +122,42 @@ public class Bowtie2Instance extends AlignerInstance {
 
     @Override
     public void closeAligner() throws InterruptedException {
+        closeFeeder();
+        if(bowtie2 == null) {
+            // no reads in this task
+            prefetcher.close();
+            instance = null;
+            return;
+        }
         try {
-            fastqFile1.close();
+            // closing the fifos ends the input of bowtie2
+            fastqFifo1.close();
             if(isPaired) {
-                fastqFile2.close();
+                fastqFifo2.close();
             }
         } catch (IOException ex) {
             Logger.EXCEPTION(ex);
             throw new ProcessException("Bowtie2", -1);
         }
 
-        String customArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "bowtie2", "");  
-        String[] command = CommandGenerator.bowtie2(bin, ref,
-                getFileName(tmpdir, taskId, 1), 
-                getFileName(tmpdir, taskId, 2), 
-                threads, customArgs);
-        bowtie2 = new ProcessBuilderWrapper(command, bin);
-        bowtie2.startProcess(null, System.err);     
-        if(!bowtie2.isAlive())
-            throw new ProcessException("Bowtie2", bowtie2.getExitState());   
-        
-        // make a SAMstream handler
-        ssh = new SAMStreamHandler(instance, context, false);
-        ssh.start();
-
-
-        ssh.join();
+        finishStreamHandler(ssh);
         int error = bowtie2.waitForCompletion();
         if(error != 0)
             throw new ProcessException("Bowtie2", error);
         context.getCounter(HalvadeCounters.TIME_BOWTIE2).increment(bowtie2.getExecutionTime());
         
-        //remove all temporary fastq files
-        HalvadeFileUtils.removeLocalFile(keep, getFileName(tmpdir, taskId, 1), context, HalvadeCounters.FOUT_BWA_TMP);
-        HalvadeFileUtils.removeLocalFile(keep, getFileName(tmpdir, taskId, 2), context, HalvadeCounters.FOUT_BWA_TMP);
+        //remove the named pipes
+        HalvadeFileUtils.removeLocalFile(getFileName(tmpdir, taskId, 1));
+        HalvadeFileUtils.removeLocalFile(getFileName(tmpdir, taskId, 2));
+        prefetcher.close();
         instance = null;
     }
     
     static public Bowtie2Instance getBowtie2Instance(Mapper.Context context, String bin) throws IOException, InterruptedException, URISyntaxException {
         if(instance == null) {
             instance = new Bowtie2Instance(context, bin);
-            instance.startAligner(context);
         }
         Bowtie2Instance.context = context;
-        Logger.DEBUG("Started Bowtie2");
         return instance;
     }
     
@@ -162,7 +169,8 @@ public class Bowtie2Instance extends AlignerInstance {
     @Override
     public void flushStream() {
         try {
-            if (bowtie2 != null) bowtie2.getSTDINWriter().flush();
+            if (fastqFifo1 != null) fastqFifo1.flush();
+            if (fastqFifo2 != null) fastqFifo2.flush();
         } catch (IOException ex) {
             Logger.EXCEPTION(ex);
         }
@@ -6,6 +6,7 @@
 
 package be.ugent.intec.halvade.tools;
 
+import be.ugent.intec.halvade.hadoop.datatypes.FastqReadBlock;
 import be.ugent.intec.halvade.utils.HalvadeFileUtils;
 import be.ugent.intec.halvade.utils.Logger;
 import java.io.IOException;
@@ -47,6 +48,10 @@ public class DummyAlignerInstance extends AlignerInstance {
     public void closeAligner() throws InterruptedException {
     }
     
+    @Override
+    public void writeReads(FastqReadBlock reads) throws IOException, InterruptedException {
+    }
+    
     static public DummyAlignerInstance getDummyInstance(Mapper.Context context, String bin) throws IOException, InterruptedException, URISyntaxException {
         if(instance == null) {
             instance = new DummyAlignerInstance(context, bin);
@@ -24,8 +24,12 @@ public class QualityEncoding {
     
     public static QENCODING guessEncoding(final SAMRecord read) throws QualityException {
         final byte[] quals = read.getBaseQualities();
-        byte max = quals[0];
-        for ( int i = 0; i < quals.length; i++ ) {
+        return guessEncoding(quals, 0, quals.length);
+    }
+    
+    public static QENCODING guessEncoding(final byte[] quals, int offset, int length) throws QualityException {
+        byte max = length > 0 ? quals[offset] : 0;
+        for ( int i = offset; i < offset + length; i++ ) {
             if(quals[i] > max) max =quals[i];
         }
         Logger.DEBUG("Max quality: " + max, 3);
@@ -41,12 +45,19 @@ public class QualityEncoding {
     private static final int fixQualityIlluminaToPhred = 31;  
     public static SAMRecord fixMisencodedQuals(final SAMRecord read) throws QualityException {
         final byte[] quals = read.getBaseQualities();
-        for ( int i = 0; i < quals.length; i++ ) {
+        fixMisencodedQuals(quals, 0, quals.length);
+        read.setBaseQualities(quals);
+        return read;
+    }
+    
+    public static void fixMisencodedQuals(final byte[] quals, int offset, int length) throws QualityException {
+        // 0xff marks missing qualities in a BAM record
+        if(length == 0 || quals[offset] == (byte)0xff)
+            return;
+        for ( int i = offset; i < offset + length; i++ ) {
             quals[i] -= fixQualityIlluminaToPhred;
             if ( quals[i] < 0 )
                 throw new QualityException(quals[i]);
         }
-        read.setBaseQualities(quals);
-        return read;
     }
 }
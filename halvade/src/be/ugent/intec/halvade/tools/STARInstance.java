@@ -17,21 +17,21 @@
 
 package be.ugent.intec.halvade.tools;
 
+import be.ugent.intec.halvade.hadoop.datatypes.FastqReadBlock;
 import be.ugent.intec.halvade.hadoop.datatypes.GenomeSJ;
 import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
+import be.ugent.intec.halvade.utils.StreamHandler;
 import be.ugent.intec.halvade.utils.CommandGenerator;
 import be.ugent.intec.halvade.utils.HalvadeFileUtils;
 import be.ugent.intec.halvade.utils.Logger;
 import be.ugent.intec.halvade.utils.HalvadeConf;
 import be.ugent.intec.halvade.utils.ProcessBuilderWrapper;
-import be.ugent.intec.halvade.utils.SAMStreamHandler;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 import htsjdk.samtools.SAMSequenceDictionary;
 import org.apache.hadoop.io.Text;
@@ -47,9 +47,9 @@ public class STARInstance extends AlignerInstance {
     public static int PASS2 = 2;
     private static STARInstance instance;
     private ProcessBuilderWrapper star;
-    private SAMStreamHandler ssh;
-    private BufferedWriter fastqFile1;
-    private BufferedWriter fastqFile2;
+    private StreamHandler ssh;
+    private OutputStream fastqFifo1;
+    private OutputStream fastqFifo2;
     private String taskId;
     private String starOutDir;
     private int overhang, nReads;
@@ -67,21 +67,17 @@ public class STARInstance extends AlignerInstance {
         overhang = 0;
     }
     
-    public int feedLine(String line, int count, int read) throws IOException, InterruptedException  {
-        if(read == 1 || !isPaired) {
-            fastqFile1.write(line + "\n");
-//            return feedLine(line, star);
-        } else if (read == 0) {
-            fastqFile2.write(line + "\n");
-//            return feedLine(line, star);
-        }
-        if(count % 2 == 0) {
-            int possibleOverhang = line.length() - 1;
+    @Override
+    public void writeReads(FastqReadBlock reads) throws IOException, InterruptedException  {
+        if(star == null)
+            startSTAR();
+        feedFifos(reads, fastqFifo1, fastqFifo2);
+        for(int i = 0; i < reads.getReadCount(); i++) {
+            int possibleOverhang = reads.getSequenceLength(i) - 1;
             if(possibleOverhang > overhang)
                 overhang = possibleOverhang; // overhang == max read length - 1;
         }
-        nReads++;
-        return 0;
+        nReads += reads.getReadCount();
     }
     
     public String getGenomeDir() {
@@ -117,8 +113,8 @@ public class STARInstance extends AlignerInstance {
     public void flushStream() {
         try {
             // close the input stream
-            if(star != null)
-                star.getSTDINWriter().flush();
+            if(fastqFifo1 != null) fastqFifo1.flush();
+            if(fastqFifo2 != null) fastqFifo2.flush();
         } catch (IOException ex) {
             Logger.EXCEPTION(ex);
         }
@@ -126,7 +122,10 @@ public class STARInstance extends AlignerInstance {
 
     @Override
     public int getState() {
-        return star.getState();
+        if (star != null)
+            return star.getState();
+        else 
+            return 1;
     }
 
     @Override
@@ -136,48 +135,33 @@ public class STARInstance extends AlignerInstance {
 
     @Override
     public void closeAligner() throws InterruptedException {
+        closeFeeder();
         try {
-            // close both fastq files          
-            fastqFile1.close();
+            // a task without reads still runs STAR so pass 1 emits the splice junctions
+            if(star == null)
+                startSTAR();
+            // closing the fifos ends the input of STAR
+            fastqFifo1.close();
             if(isPaired) {
-                fastqFile2.close();
+                fastqFifo2.close();
             }
         } catch (IOException ex) {
             Logger.EXCEPTION(ex);
             throw new ProcessException("STAR fastq files", -1);
         }
         
-        // make command
-        String customArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "star", "");
-        String[] command = CommandGenerator.starAlign(bin, starType, ref, starOutDir,  
-                getFileName(tmpdir, taskId, 1), getFileName(tmpdir, taskId, 2), 
-                threads, overhang, nReads / 4, customArgs);
-        star = new ProcessBuilderWrapper(command, bin);
-        // run command
-        // needs to be streamed to output otherwise the process blocks ...
-        if(starType == PASS1)
-            star.startProcess(System.out, System.err);
-        else
-            star.startProcess(null, System.err);
-        // check if alive
-        if(!star.isAlive())
-            throw new ProcessException("STAR aligner", star.getExitState());
-        if(starType == PASS2) {
-            ssh = new SAMStreamHandler(instance, context, false);
-            ssh.start();
-        }
         int error = star.waitForCompletion();
         if(starType == PASS2)
-            ssh.join();
+            finishStreamHandler(ssh);
         if(error != 0)
             throw new ProcessException("STAR aligner", error);
         context.getCounter(HalvadeCounters.TIME_STAR).increment(star.getExecutionTime());
         if (starType == PASS1) {
             emitJSFile(starOutDir, context);
         }
-        //remove all temporary fastq/sai files
-        HalvadeFileUtils.removeLocalFile(keep, getFileName(tmpdir, taskId, 1), context, HalvadeCounters.FOUT_STAR_TMP);
-        HalvadeFileUtils.removeLocalFile(keep, getFileName(tmpdir, taskId, 2), context, HalvadeCounters.FOUT_STAR_TMP);
+        //remove the named pipes
+        HalvadeFileUtils.removeLocalFile(getFileName(tmpdir, taskId, 1));
+        HalvadeFileUtils.removeLocalFile(getFileName(tmpdir, taskId, 2));
         // delete star tmp/out dirs
         HalvadeFileUtils.removeLocalDir(keep, starOutDir, context, HalvadeCounters.FOUT_STAR_TMP);
         instance = null;
@@ -220,36 +204,59 @@ public class STARInstance extends AlignerInstance {
 
     @Override
     protected void startAligner(Mapper.Context context) throws IOException, InterruptedException {
-        File file1 = new File(getFileName(tmpdir, taskId, 1));
-        if (!file1.exists()) {
-            file1.createNewFile();
-        }
-        fastqFile1 = new BufferedWriter(new FileWriter(file1.getAbsoluteFile()));
-        if(isPaired) {
-            File file2 = new File(getFileName(tmpdir, taskId, 2));
-            if (!file2.exists()) {
-                    file2.createNewFile();
-            }
-            fastqFile2 = new BufferedWriter(new FileWriter(file2.getAbsoluteFile()));
-        }
+        makeFifo(getFileName(tmpdir, taskId, 1));
+        if(isPaired)
+            makeFifo(getFileName(tmpdir, taskId, 2));
         // make output dir!
         File starOut = new File(starOutDir);
         starOut.mkdirs();
     }
     
+    /**
+     * STAR is started with the first reads, the mapper loads the reference
+     * in shared memory after the instance is made
+     */
+    protected void startSTAR() throws IOException, InterruptedException {
+        String customArgs = HalvadeConf.getCustomArgs(context.getConfiguration(), "star", "");
+        String[] command = CommandGenerator.starAlign(bin, starType, ref, starOutDir,  
+                getFileName(tmpdir, taskId, 1), isPaired ? getFileName(tmpdir, taskId, 2) : null, 
+                threads, overhang, nReads, useBamStream, customArgs);
+        star = new ProcessBuilderWrapper(command, bin);
+        // run command
+        // needs to be streamed to output otherwise the process blocks ...
+        if(starType == PASS1)
+            star.startProcess(System.out, System.err);
+        else
+            star.startProcess(null, System.err);
+        // check if alive
+        if(!star.isAlive())
+            throw new ProcessException("STAR aligner", star.getExitState());
+        if(starType == PASS2) {
+            ssh = getStreamHandler(context);
+            ssh.start();
+        }
+        String[] fifos = isPaired ? 
+                new String[]{getFileName(tmpdir, taskId, 1), getFileName(tmpdir, taskId, 2)} : 
+                new String[]{getFileName(tmpdir, taskId, 1)};
+        OutputStream[] streams = openFifos(fifos, star);
+        fastqFifo1 = streams[0];
+        if(isPaired)
+            fastqFifo2 = streams[1];
+    }
+    
     public void loadSharedMemoryReference(String ref, boolean unload) throws InterruptedException {
         if(ref == null) ref = this.ref;
         if(unload)  Logger.DEBUG("Remove ref [" + ref + "] from shared memory.");
         else Logger.DEBUG("Load ref [" + ref + "] to shared memory");
         String[] command = CommandGenerator.starGenomeLoad(bin, ref, unload);
-        star = new ProcessBuilderWrapper(command, bin);
-        star.startProcess(System.out, System.err);
-        if(!star.isAlive())
-            throw new ProcessException("STAR aligner load", star.getExitState());
-        int error = star.waitForCompletion();
+        ProcessBuilderWrapper starLoad = new ProcessBuilderWrapper(command, bin);
+        starLoad.startProcess(System.out, System.err);
+        if(!starLoad.isAlive())
+            throw new ProcessException("STAR aligner load", starLoad.getExitState());
+        int error = starLoad.waitForCompletion();
         if(!(error == 0 || error == 105)) // 105 = no ref in memory
             throw new ProcessException("STAR aligner load", error);
-        context.getCounter(HalvadeCounters.TIME_STAR_REF).increment(star.getExecutionTime());
+        context.getCounter(HalvadeCounters.TIME_STAR_REF).increment(starLoad.getExecutionTime());
     }
     
     /**
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import be.ugent.intec.halvade.hadoop.datatypes.EncodedSAMRecordWritable;
+import be.ugent.intec.halvade.tools.AlignerInstance;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.StringLineReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ *
+ * @author ddecap
+ */
+public class BAMStreamHandler extends StreamHandler {
+
+    /*
+     * reads BAM records from an outputstream (stdout from a process)
+     * the records are not decoded, the bytes are written to the output of hadoop
+     * uncompressed BAM (BGZF level 0) only costs a copy to read
+     */
+    protected static final byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+    protected static final int BUFFER_SIZE = 1 << 16;
+    InputStream is;
+    AlignerInstance instance;
+    TaskInputOutputContext<?, ?, ?, ?> context;
+    boolean isPaired = true;
+    EncodedSAMRecordWritable record;
+    int[] keys;
+
+    public BAMStreamHandler(AlignerInstance instance, TaskInputOutputContext<?, ?, ?, ?> context) {
+        this.is = instance.getSTDOUTStream();
+        this.instance = instance;
+        this.context = context;
+        isPaired = HalvadeConf.getIsPaired(context.getConfiguration());
+        record = new EncodedSAMRecordWritable();
+        keys = new int[ChromosomeSplitter.MAX_KEYS];
+        setName("BAM stream handler");
+    }
+
+    @Override
+    public void run() {
+        int count = 0;
+        int reads = 0;
+        try {
+            DataInputStream in = new DataInputStream(new BlockCompressedInputStream(new BufferedInputStream(is, BUFFER_SIZE)));
+            SAMFileHeader header = readHeader(in);
+            if(instance.getFileHeader() == null)
+                instance.setFileHeader(header);
+            while (true) {
+                try {
+                    record.readFields(in);
+                } catch (EOFException ex) {
+                    break;
+                }
+                reads++;
+                int keyCount;
+                if(isPaired) keyCount = instance.getPairedRegions(record, keys);
+                else keyCount = instance.getRegions(record, keys);
+                count += instance.writeEncodedRecordToContext(record, keys, keyCount);
+            }
+        } catch (IOException | InterruptedException | RuntimeException ex) {
+            setError(ex);
+            drain();
+        }
+        Logger.DEBUG("BAMstream counts " + count + " records from " + reads + " reads");
+    }
+
+    /**
+     * reads the rest of the aligner output so it doesn't block on a full pipe, 
+     * the error fails the task when the aligner is closed
+     */
+    protected void drain() {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            while(is.read(buffer) >= 0) {
+                // discard
+            }
+        } catch (IOException ex) {
+            Logger.EXCEPTION(ex);
+        }
+    }
+
+    protected SAMFileHeader readHeader(DataInputStream in) throws IOException {
+        byte[] magic = new byte[BAM_MAGIC.length];
+        in.readFully(magic);
+        if(!Arrays.equals(magic, BAM_MAGIC))
+            throw new IOException("aligner output is not in BAM format");
+        byte[] text = new byte[readLittleEndianInt(in)];
+        in.readFully(text);
+        SAMFileHeader header = new SAMTextHeaderCodec().decode(new StringLineReader(new String(text, "US-ASCII")), null);
+        // the reference list in the binary header is what the records refer to
+        SAMSequenceDictionary dict = new SAMSequenceDictionary();
+        int refCount = readLittleEndianInt(in);
+        for(int i = 0; i < refCount; i++) {
+            byte[] name = new byte[readLittleEndianInt(in)];
+            in.readFully(name);
+            int length = readLittleEndianInt(in);
+            // name is null terminated
+            dict.addSequence(new SAMSequenceRecord(new String(name, 0, name.length - 1, "US-ASCII"), length));
+        }
+        if(header.getSequenceDictionary().isEmpty())
+            header.setSequenceDictionary(dict);
+        return header;
+    }
+
+    protected int readLittleEndianInt(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+}
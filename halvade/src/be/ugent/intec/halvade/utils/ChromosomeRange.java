@@ -108,6 +108,10 @@ public class ChromosomeRange {
         bedWriter.close();
     }
 
+    public boolean isEmpty() {
+        return list.isEmpty();
+    }
+
     public int getAlignmentEnd() {
         return list.get(list.size() - 1).alignmentEnd;
     }
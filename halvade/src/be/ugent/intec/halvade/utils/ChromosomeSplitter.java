@@ -17,9 +17,12 @@
 
 package be.ugent.intec.halvade.utils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
@@ -28,18 +31,23 @@ import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import be.ugent.intec.halvade.hadoop.datatypes.EncodedSAMRecordWritable;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import java.io.File;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.Comparator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.PriorityQueue;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
@@ -71,12 +79,14 @@ public final class ChromosomeSplitter {
         }
         
     }
-    protected class BedRegion {
+    protected static class BedRegion {
         protected String contig;
         protected int start;
         protected int end;
         protected int key;
         protected int reads;
+        // reads up to this distance past either end are also sent to the region
+        protected int overlap;
 
         private BedRegion(String contig, String start, String end, String key) {
             this.contig = contig;
@@ -114,12 +124,23 @@ public final class ChromosomeSplitter {
         }
         
     }
+    protected class BedRegionStartComparator implements Comparator<BedRegion> {
+
+        @Override
+        public int compare(BedRegion o1, BedRegion o2) {
+            return o1.start - o2.start;
+        }
+        
+    }
 //    protected HashMap<String, ArrayList<BedRegion> > regions;
     protected ArrayList<BedRegion> regions;
     protected static final double MIN_THRESHOLD = 1.25;
     protected static final double LT_FACTOR = 5.0;
     protected final int MIN_GENE_SEPARATION = 100000;
     protected int regionLength;
+    // the start and end of a read and its mate each reach at most 3 regions
+    // (their own and both neighbours through the overlap margins)
+    public static final int MAX_KEYS = 12;
     protected HashMap<String ,Integer> lengthByContig;
     protected int regionCount;
     protected SAMSequenceDictionary dict;
@@ -129,11 +150,13 @@ public final class ChromosomeSplitter {
 //        getMinRegionLength(bedfile, reduceCount);
         getMinRegionLength(reduceCount);
         calculateRegionsPerChromosome(bedfile);
+        buildRegionIndex();
     }
     public ChromosomeSplitter(SAMSequenceDictionary dict, int reduceCount) throws URISyntaxException, IOException {
         this.dict = dict;
         getMinRegionLength(reduceCount);
         calculateRegionsPerChromosome();
+        buildRegionIndex();
     }
     // fix regions by read counts per 10k pos??? -> either by reordering or by redefining regions by count instead of size
     public ChromosomeSplitter(SAMSequenceDictionary dict, String readsCountFile, int reduceCount, boolean useOnlyToReorder) throws URISyntaxException, IOException {
@@ -144,43 +167,245 @@ public final class ChromosomeSplitter {
         else
             calculateRegionsPerChromosomeByReadCount(reduceCount, readsCountFile);
         orderPartitionsBySize(readsCountFile);
+        buildRegionIndex();
     }     
     public ChromosomeSplitter(String filename, Configuration config) throws URISyntaxException, IOException {
-        importSplitter(filename, config);
+        synchronized(ChromosomeSplitter.class) {
+            importSplitter(filename, config);
+            this.dict = importedDict;
+            this.regions = importedRegions;
+            this.reducerTable = importedTable;
+        }
+        buildRegionIndex();
     }
     
-    private Integer[] getKey(String refName, int pos, int pos2) {
-        Integer tmpList[] = {null, null};
-        for (BedRegion region: regions) {
-            if (refName.equalsIgnoreCase(region.contig) && pos >= region.start && pos < region.end)
-                tmpList[0] = region.key;
-            if (refName.equalsIgnoreCase(region.contig) && pos2 >= region.start && pos2 < region.end)
-                tmpList[1] = region.key;
+    /**
+     * the sequence dictionary stored in the splitter file, read once in every task
+     */
+    public static SAMSequenceDictionary getSequenceDictionary(String filename, Configuration config) throws URISyntaxException, IOException {
+        synchronized(ChromosomeSplitter.class) {
+            importSplitter(filename, config);
+            return importedDict;
         }
-        return tmpList;
     }
     
-    public HashSet<Integer> getRegions(SAMRecord sam, int read1Ref, int read2Ref) {  
-        int beginpos1 = sam.getAlignmentStart();
-        int endpos1 = sam.getAlignmentEnd();
+    /**
+     * the reducer of every region key, empty if the keys are not assigned to reducers
+     */
+    public static int[] getReducerTable(String filename, Configuration config) throws URISyntaxException, IOException {
+        synchronized(ChromosomeSplitter.class) {
+            importSplitter(filename, config);
+            return importedTable;
+        }
+    }
+    
+    /*
+     * regions per contig, indexed by the sequence dictionary index and sorted 
+     * on start position, regions of one contig never overlap but the reads 
+     * in the overlap margin of a region are also sent to that region
+     */
+    protected int[][] indexStart;
+    protected int[][] indexEnd;
+    protected int[][] indexKey;
+    protected int[][] indexOverlap;
+    // the boundaries between the regions of contig i are numbered from boundaryOffset[i]
+    protected int[] boundaryOffset;
+    
+    private int getContigIndex(String contig) {
+        int idx = dict.getSequenceIndex(contig);
+        if(idx < 0) {
+            for(int i = 0; i < dict.size() && idx < 0; i++) 
+                if(dict.getSequence(i).getSequenceName().equalsIgnoreCase(contig))
+                    idx = i;
+        }
+        return idx;
+    }
+    
+    private void buildRegionIndex() {
+        ArrayList<ArrayList<BedRegion> > regionsPerContig = new ArrayList<>(dict.size());
+        for(int i = 0; i < dict.size(); i++)
+            regionsPerContig.add(new ArrayList<BedRegion>());
+        for(BedRegion region : regions) {
+            int idx = getContigIndex(region.contig);
+            if(idx >= 0)
+                regionsPerContig.get(idx).add(region);
+            else
+                Logger.DEBUG("region contig " + region.contig + " not found in dictionary", 3);
+        }
+        indexStart = new int[dict.size()][];
+        indexEnd = new int[dict.size()][];
+        indexKey = new int[dict.size()][];
+        indexOverlap = new int[dict.size()][];
+        boundaryOffset = new int[dict.size() + 1];
+        for(int i = 0; i < dict.size(); i++) {
+            ArrayList<BedRegion> cregions = regionsPerContig.get(i);
+            boundaryOffset[i + 1] = boundaryOffset[i] + Math.max(0, cregions.size() - 1);
+            Collections.sort(cregions, new BedRegionStartComparator());
+            indexStart[i] = new int[cregions.size()];
+            indexEnd[i] = new int[cregions.size()];
+            indexKey[i] = new int[cregions.size()];
+            indexOverlap[i] = new int[cregions.size()];
+            for(int j = 0; j < cregions.size(); j++) {
+                indexStart[i][j] = cregions.get(j).start;
+                indexEnd[i][j] = cregions.get(j).end;
+                indexKey[i][j] = cregions.get(j).key;
+                indexOverlap[i][j] = cregions.get(j).overlap;
+            }
+        }
+    }
+    
+    private int findRegion(int refIndex, int pos) {
+        int[] starts = indexStart[refIndex];
+        int lo = 0, hi = starts.length - 1, found = -1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(starts[mid] <= pos) {
+                found = mid;
+                lo = mid + 1;
+            } else 
+                hi = mid - 1;
+        }
+        return found;
+    }
+    
+    /**
+     * adds the key of the region at pos and of the neighbouring regions whose overlap reaches pos
+     */
+    private int addKeys(int refIndex, int pos, int[] keys, int count) {
+        if(refIndex < 0 || refIndex >= indexStart.length) 
+            return count;
+        int found = findRegion(refIndex, pos);
+        int[] starts = indexStart[refIndex], ends = indexEnd[refIndex], overlaps = indexOverlap[refIndex];
+        if(found > 0 && pos < ends[found - 1] + overlaps[found - 1])
+            count = addKey(indexKey[refIndex][found - 1], keys, count);
+        if(found >= 0 && pos < ends[found] + overlaps[found])
+            count = addKey(indexKey[refIndex][found], keys, count);
+        if(found + 1 < starts.length && pos >= starts[found + 1] - overlaps[found + 1])
+            count = addKey(indexKey[refIndex][found + 1], keys, count);
+        return count;
+    }
+    
+    /**
+     * keys must hold MAX_KEYS entries, getRegions never adds more keys than that
+     */
+    private int addKey(int key, int[] keys, int count) {
+        if(key < 0) 
+            return count;
+        for(int i = 0; i < count; i++)
+            if(keys[i] == key) return count;
+        keys[count] = key;
+        return count + 1;
+    }
+    
+    /**
+     * the boundary that a read from start to end crosses, or reaches through the overlap margin
+     * of the neighbouring region, boundaries are numbered from 0 to getBoundaryCount()
+     * @return -1 if the read is inside one region
+     */
+    public int getBoundary(int refIndex, int start, int end) {
+        if(refIndex < 0 || refIndex >= indexStart.length) 
+            return -1;
+        int found = findRegion(refIndex, start);
+        int[] starts = indexStart[refIndex], ends = indexEnd[refIndex], overlaps = indexOverlap[refIndex];
+        if(found + 1 < starts.length && end >= starts[found + 1] - overlaps[found + 1])
+            return boundaryOffset[refIndex] + Math.max(0, found);
+        if(found > 0 && start < ends[found - 1] + overlaps[found - 1])
+            return boundaryOffset[refIndex] + found - 1;
+        return -1;
+    }
+    
+    public int getBoundaryCount() {
+        return boundaryOffset[boundaryOffset.length - 1];
+    }
+    
+    /**
+     * the position of a boundary and the keys of the regions on both sides
+     */
+    public String getBoundaryName(int boundary) {
+        int refIndex = 0;
+        while(boundaryOffset[refIndex + 1] <= boundary)
+            refIndex++;
+        int j = boundary - boundaryOffset[refIndex];
+        return dict.getSequence(refIndex).getSequenceName() + ":" + indexStart[refIndex][j + 1]
+                + " (regions " + indexKey[refIndex][j] + " and " + indexKey[refIndex][j + 1] + ")";
+    }
+    
+    /**
+     * the key of the region that contains pos, a read is copied to the keys of its mate 
+     * and the overlapping regions but only belongs to this one
+     * @return -1 if no region contains pos
+     */
+    public int getPrimaryRegion(int refIndex, int pos) {
+        if(refIndex < 0 || refIndex >= indexStart.length) 
+            return -1;
+        int found = findRegion(refIndex, pos);
+        return found >= 0 && pos < indexEnd[refIndex][found] ? indexKey[refIndex][found] : -1;
+    }
+    
+    /**
+     * whether a region of key also gets the reads in an overlap margin past its ends
+     */
+    public boolean hasOverlap(int key) {
+        for(BedRegion region : regions)
+            if(region.key == key && region.overlap > 0)
+                return true;
+        return false;
+    }
+    
+    /**
+     * the part of range that lies in the regions of key without their overlap margins,
+     * so a variant in a margin is only called by the region that contains it
+     */
+    public ChromosomeRange getOwnedRange(int key, ChromosomeRange range) {
+        ChromosomeRange owned = new ChromosomeRange();
+        for(ChromosomeRange.Range r : range.list) {
+            int refIndex = getContigIndex(r.sequenceName);
+            if(refIndex < 0)
+                continue;
+            for(int j = 0; j < indexKey[refIndex].length; j++)
+                if(indexKey[refIndex][j] == key)
+                    owned.addRange(r.sequenceName, Math.max(r.alignmentStart, indexStart[refIndex][j]), 
+                            Math.min(r.alignmentEnd, indexEnd[refIndex][j] - 1));
+        }
+        return owned;
+    }
+    
+    /**
+     * fills keys with the distinct region keys of a read and its mate, 
+     * a negative reference index skips that read
+     * @return the number of keys written, at most MAX_KEYS
+     */
+    public int getRegions(int read1Ref, int beginpos1, int endpos1, int read2Ref, int beginpos2, int endpos2, int[] keys) {
+        int count = 0;
+        if(read1Ref >= 0) {
+            count = addKeys(read1Ref, beginpos1, keys, count);
+            count = addKeys(read1Ref, endpos1, keys, count);
+        }
+        if(read2Ref >= 0) {
+            count = addKeys(read2Ref, beginpos2, keys, count);
+            count = addKeys(read2Ref, endpos2, keys, count);
+        }
+        return count;
+    }
+    
+    public int getRegions(SAMRecord sam, int read1Ref, int read2Ref, int[] keys) {  
         int beginpos2 = sam.getMateAlignmentStart();
-        int endpos2 =  sam.getMateAlignmentStart() + sam.getReadLength();      // is approximation, but is best we can currently do!
-        HashSet<Integer> keys = new HashSet();
-        if(read1Ref >= 0)
-            Collections.addAll(keys, getKey(sam.getReferenceName(),beginpos1, endpos1));
-        if(read2Ref >= 0)
-            Collections.addAll(keys, getKey(sam.getMateReferenceName(),beginpos2,endpos2));
-        keys.removeAll(Collections.singleton(null));
-        return keys;
+        int endpos2 =  beginpos2 + sam.getReadLength();      // is approximation, but is best we can currently do!
+        return getRegions(read1Ref, sam.getAlignmentStart(), sam.getAlignmentEnd(), read2Ref, beginpos2, endpos2, keys);
+    }
+    
+    public int getRegions(SAMRecord sam, int read1Ref, int[] keys) { 
+        return getRegions(read1Ref, sam.getAlignmentStart(), sam.getAlignmentEnd(), -1, 0, 0, keys);
+    }
+    
+    public int getRegions(EncodedSAMRecordWritable record, int read1Ref, int read2Ref, int[] keys) throws IOException {  
+        int beginpos2 = record.getMateAlignmentStart();
+        int endpos2 =  beginpos2 + record.getReadLength();
+        return getRegions(read1Ref, record.getAlignmentStart(), record.getAlignmentEnd(), read2Ref, beginpos2, endpos2, keys);
     }
     
-    public HashSet<Integer> getRegions(SAMRecord sam, int read1Ref) { 
-        int beginpos1 = sam.getAlignmentStart();
-        int endpos1 = sam.getAlignmentEnd();      
-        HashSet<Integer> keys = new HashSet();
-        if(read1Ref >= 0)
-            Collections.addAll(keys, getKey(sam.getReferenceName(),beginpos1,endpos1));
-        return keys;
+    public int getRegions(EncodedSAMRecordWritable record, int read1Ref, int[] keys) throws IOException { 
+        return getRegions(read1Ref, record.getAlignmentStart(), record.getAlignmentEnd(), -1, 0, 0, keys);
     }
     
     
@@ -447,10 +672,11 @@ public final class ChromosomeSplitter {
         HashMap<String, List<BedRegion> > readCountsPerContig = new HashMap<>();
         List<String> list = Files.readAllLines(new File(countsFile).toPath(), Charset.defaultCharset() );
         for (String line: list) {   
-            String[] split0 = line.split(":");
-            String[] split1 = split0[1].split("\t");
+            // contig names can have a ':'
+            int sep = line.lastIndexOf(':');
+            String[] split1 = line.substring(sep + 1).split("\t");
             String[] split2 = split1[0].split("-");         
-            String contig = split0[0];
+            String contig = line.substring(0, sep);
             int r = Integer.parseInt(split1[1]);
             int s = Integer.parseInt(split2[0]);
             int e = Integer.parseInt(split2[1]);
@@ -518,6 +744,278 @@ public final class ChromosomeSplitter {
         Logger.DEBUG("after reordering # reducers: "+ keyCounts.size(),3);
     }
     
+    protected static final int MIN_HOT_SPLIT_LENGTH = 1000;
+    
+    /**
+     * splits every region that costs more than threshold times the average cost of a key
+     * in sub-regions with a new key each, so one region doesn't decide the runtime of the job.
+     * the cuts are made on the read counts if given, else the region is split in equal parts.
+     * the sub-regions also get the reads up to overlap bases past their ends so variants 
+     * on a cut have the reads on both sides, each variant is only called by the part that contains it
+     * @return the number of sub-regions that were added
+     */
+    public int splitHotRegions(String readCountsFile, double threshold, int overlap) throws IOException {
+        long[] cost = getKeyCosts(readCountsFile);
+        long total = 0;
+        for(long c : cost)
+            total += c;
+        if(cost.length == 0 || total == 0)
+            return 0;
+        double average = (double)total / cost.length;
+        HashMap<String, List<BedRegion> > readCountsPerContig = readCountsFile == null ? null : makeRegionListFromFile(readCountsFile);
+        int nextKey = cost.length;
+        ArrayList<BedRegion> added = new ArrayList<>();
+        for(BedRegion region : regions) {
+            List<BedRegion> bins = new ArrayList<>();
+            long regionCost = getRegionCost(region, readCountsPerContig, bins);
+            if(regionCost <= threshold * average)
+                continue;
+            int parts = (int)Math.min(Math.ceil(regionCost / average), getMaxParts(region, overlap));
+            if(parts < 2)
+                continue;
+            List<Integer> cuts = getCuts(region, bins, regionCost, parts, overlap);
+            Logger.DEBUG("splitting region " + region.key + " " + region.contig + ":" + region.start + "-" + region.end 
+                    + " with cost " + regionCost + " in " + (cuts.size() + 1) + " parts");
+            int end = region.end;
+            region.end = cuts.get(0);
+            region.overlap = overlap;
+            for(int i = 0; i < cuts.size(); i++) {
+                BedRegion part = new BedRegion(region.contig, cuts.get(i), i + 1 < cuts.size() ? cuts.get(i + 1) : end, nextKey++);
+                part.overlap = overlap;
+                added.add(part);
+            }
+        }
+        regions.addAll(added);
+        regionCount += added.size();
+        buildRegionIndex();
+        return added.size();
+    }
+    
+    /**
+     * the number of reads in the region, or its length without read counts,
+     * the read count bins of the region are added to bins
+     */
+    protected long getRegionCost(BedRegion region, HashMap<String, List<BedRegion> > readCountsPerContig, List<BedRegion> bins) {
+        if(readCountsPerContig == null)
+            return region.end - region.start;
+        long reads = 0;
+        if(readCountsPerContig.containsKey(region.contig)) {
+            for(BedRegion bin : readCountsPerContig.get(region.contig)) {
+                if(bin.end > region.start && bin.start < region.end) {
+                    bins.add(bin);
+                    reads += bin.reads;
+                }
+            }
+        }
+        return reads;
+    }
+    
+    protected int getMaxParts(BedRegion region, int overlap) {
+        return (region.end - region.start) / Math.max(MIN_HOT_SPLIT_LENGTH, 2 * overlap);
+    }
+    
+    /**
+     * positions that split the region in parts with the same number of reads, 
+     * or the same length if the read count bins are too large for that.
+     * no part is narrower than 2 * overlap, a read in a margin then only reaches the next region
+     */
+    protected List<Integer> getCuts(BedRegion region, List<BedRegion> bins, long regionCost, int parts, int overlap) {
+        List<Integer> cuts = new ArrayList<>();
+        int minLength = Math.max(MIN_HOT_SPLIT_LENGTH, 2 * overlap);
+        if(!bins.isEmpty()) {
+            Collections.sort(bins, new BedRegionStartComparator());
+            long reads = 0;
+            for(BedRegion bin : bins) {
+                int previous = cuts.isEmpty() ? region.start : cuts.get(cuts.size() - 1);
+                if(bin.start - previous >= minLength && region.end - bin.start >= minLength
+                        && reads >= regionCost * (cuts.size() + 1) / parts && cuts.size() < parts - 1)
+                    cuts.add(bin.start);
+                reads += bin.reads;
+            }
+        }
+        if(cuts.size() < parts - 1) {
+            cuts.clear();
+            int length = (region.end - region.start) / parts;
+            for(int i = 1; i < parts; i++)
+                cuts.add(region.start + i * length);
+        }
+        return cuts;
+    }
+    
+    protected static final int MIN_N_RUN = 500;
+    protected static final int MAX_SNAP_DISTANCE = 1000000;
+    
+    /**
+     * moves the boundary between two adjacent regions of a contig to the middle of the longest run of N 
+     * nearby, or else to the start of the bin with the fewest reads in the read count file,
+     * reads that cross a boundary are sent to both regions and no read aligns in a run of N
+     * @param tolerance the distance a boundary can move as part of the smallest of the two regions
+     */
+    public void snapBoundaries(ReferenceGaps gaps, String readCountsFile, double tolerance) throws IOException {
+        HashMap<String, List<BedRegion> > readCountsPerContig = readCountsFile == null ? null : makeRegionListFromFile(readCountsFile);
+        HashMap<String, List<BedRegion> > regionsPerContig = new HashMap<>();
+        for(BedRegion region : regions) {
+            if(!regionsPerContig.containsKey(region.contig)) regionsPerContig.put(region.contig, new ArrayList<BedRegion>());
+            regionsPerContig.get(region.contig).add(region);
+        }
+        int gapCount = 0, countCount = 0;
+        for(String contig : regionsPerContig.keySet()) {
+            List<BedRegion> cregions = regionsPerContig.get(contig);
+            Collections.sort(cregions, new BedRegionStartComparator());
+            for(int i = 1; i < cregions.size(); i++) {
+                BedRegion a = cregions.get(i - 1), b = cregions.get(i);
+                if(a.key == b.key || b.start - a.end > 1)
+                    continue;
+                int cut = a.end;
+                int distance = (int)Math.min(MAX_SNAP_DISTANCE, Math.min(a.end - a.start, b.end - b.start) * tolerance);
+                int from = Math.max(a.start + 1, cut - distance), to = Math.min(b.end - 1, cut + distance);
+                int snapped = -1;
+                if(gaps != null) {
+                    int[] run = gaps.getLongestNRun(contig, from, to);
+                    if(run != null && run[1] - run[0] >= MIN_N_RUN) {
+                        snapped = (run[0] + run[1]) / 2;
+                        gapCount++;
+                    }
+                }
+                if(snapped < 0 && readCountsPerContig != null && readCountsPerContig.containsKey(contig)) {
+                    long fewest = Long.MAX_VALUE;
+                    for(BedRegion bin : readCountsPerContig.get(contig)) {
+                        if(bin.start > from && bin.start < to && (bin.reads < fewest 
+                                || (bin.reads == fewest && Math.abs(bin.start - cut) < Math.abs(snapped - cut)))) {
+                            fewest = bin.reads;
+                            snapped = bin.start;
+                        }
+                    }
+                    if(snapped >= 0)
+                        countCount++;
+                }
+                if(snapped < 0)
+                    snapped = cut;
+                Logger.DEBUG("boundary " + contig + ":" + cut + " moved to " + snapped, 3);
+                a.end = snapped;
+                b.start = snapped;
+            }
+        }
+        Logger.DEBUG("moved " + gapCount + " region boundaries to a run of N and " + countCount + " to a low read count");
+        buildRegionIndex();
+    }
+    
+    /*
+     * reducer of every region key, the keys are assigned with the longest processing time 
+     * first heuristic: the most expensive key goes to the reducer with the lowest total cost so far
+     */
+    protected int[] reducerTable;
+    
+    /**
+     * the cost of a key is its number of reads if a read count file is given, else its length
+     */
+    public void makeReducerTable(int reducers, String readCountsFile) throws IOException {
+        final long[] cost = getKeyCosts(readCountsFile);
+        Integer[] keys = new Integer[cost.length];
+        for(int i = 0; i < keys.length; i++)
+            keys[i] = i;
+        Arrays.sort(keys, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(cost[b], cost[a]);
+            }
+        });
+        // reducer load and number
+        PriorityQueue<long[]> load = new PriorityQueue<>(Math.max(1, reducers), new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]);
+            }
+        });
+        for(int i = 0; i < reducers; i++)
+            load.add(new long[]{0, i});
+        reducerTable = new int[cost.length];
+        for(int key : keys) {
+            long[] reducer = load.poll();
+            reducerTable[key] = (int)reducer[1];
+            reducer[0] += cost[key];
+            load.add(reducer);
+        }
+        long min = Long.MAX_VALUE, max = 0;
+        for(long[] reducer : load) {
+            min = Math.min(min, reducer[0]);
+            max = Math.max(max, reducer[0]);
+        }
+        Logger.DEBUG("assigned " + cost.length + " region keys to " + reducers + " reducers, cost per reducer: " + min + " - " + max);
+    }
+    
+    /**
+     * the reducer of a key, keys that are not in the table are divided with a modulo
+     */
+    public static int getReducer(int[] table, int key, int reducers) {
+        if(key < table.length && table[key] < reducers)
+            return table[key];
+        return key % reducers;
+    }
+    
+    /**
+     * keeps only the regions of the given reducers and splits each of them in parts with a new key,
+     * so the regions of a straggling reducer can be processed again by more reducers
+     * @return the number of regions
+     */
+    public int replanRegions(Collection<Integer> reducers, int reducerCount, int parts, int overlap, String readCountsFile) throws IOException {
+        HashMap<String, List<BedRegion> > readCountsPerContig = readCountsFile == null ? null : makeRegionListFromFile(readCountsFile);
+        int[] table = reducerTable == null ? new int[0] : reducerTable;
+        ArrayList<BedRegion> replanned = new ArrayList<>();
+        for(BedRegion region : regions) {
+            if(!reducers.contains(getReducer(table, region.key, reducerCount)))
+                continue;
+            List<BedRegion> bins = new ArrayList<>();
+            long regionCost = getRegionCost(region, readCountsPerContig, bins);
+            int n = Math.min(parts, getMaxParts(region, overlap));
+            List<Integer> cuts = n < 2 ? new ArrayList<Integer>() : getCuts(region, bins, regionCost, n, overlap);
+            cuts.add(region.end);
+            int start = region.start;
+            for(int cut : cuts) {
+                BedRegion part = new BedRegion(region.contig, start, cut, replanned.size());
+                part.overlap = overlap;
+                replanned.add(part);
+                start = cut;
+            }
+        }
+        Logger.DEBUG("replanned the regions of " + reducers.size() + " reducers in " + replanned.size() + " regions");
+        regions = replanned;
+        regionCount = replanned.size();
+        reducerTable = null;
+        buildRegionIndex();
+        return regionCount;
+    }
+    
+    protected long[] getKeyCosts(String readCountsFile) throws IOException {
+        int keys = 0;
+        for(BedRegion region : regions)
+            keys = Math.max(keys, region.key + 1);
+        long[] cost = new long[keys];
+        HashMap<String, List<BedRegion> > readCountsPerContig = readCountsFile == null ? null : makeRegionListFromFile(readCountsFile);
+        for(BedRegion region : regions) {
+            if(readCountsPerContig == null)
+                cost[region.key] += region.end - region.start;
+            else if(readCountsPerContig.containsKey(region.contig)) {
+                for (BedRegion r : readCountsPerContig.get(region.contig)) {
+                    if(r.end > region.start && r.start < region.end)
+                        cost[region.key] += r.reads;
+                }
+            }
+        }
+        return cost;
+    }
+    
+    /*
+     * the splitter file has the sequence dictionary followed by the regions,
+     * it is in the distributed cache of the job so a task reads it from local disk
+     */
+    public static final String SPLITTER_FILE = "HalvadeRegions.bed";
+    // the name, length and modification time of the imported file
+    protected static String importedFile;
+    protected static SAMSequenceDictionary importedDict;
+    protected static ArrayList<BedRegion> importedRegions;
+    protected static int[] importedTable;
+    
     public void exportSplitter(String filename, Configuration conf) throws URISyntaxException, IOException {
         DataOutputStream dos = null;
         FileSystem hdfs = null;
@@ -526,37 +1024,83 @@ public final class ChromosomeSplitter {
             Path file = new Path(filename);
             if ( hdfs.exists( file )) { hdfs.delete( file, true ); } 
             OutputStream os = hdfs.create(file);
-            dos = new DataOutputStream(os);
+            dos = new DataOutputStream(new BufferedOutputStream(os));
+            dos.writeInt(dict.size());
+            for(SAMSequenceRecord seq : dict.getSequences()) {
+                dos.writeUTF(seq.getSequenceName());
+                dos.writeInt(seq.getSequenceLength());
+            }
             dos.writeInt(regions.size());
             for(BedRegion region : regions) {
                 dos.writeUTF(region.contig);
                 dos.writeInt(region.start);
                 dos.writeInt(region.end);
                 dos.writeInt(region.key);
+                dos.writeInt(region.overlap);
             }
+            int tableSize = reducerTable == null ? 0 : reducerTable.length;
+            dos.writeInt(tableSize);
+            for(int i = 0; i < tableSize; i++)
+                dos.writeInt(reducerTable[i]);
         } finally {
             if(dos != null)
                 dos.close();
         }
     }
     
-    private void importSplitter(String filename, Configuration conf) throws URISyntaxException, IOException {
-        regions = new ArrayList();
-        DataInputStream dis = null;
+    /**
+     * a task reads the splitter file from the distributed cache, the driver and tasks without
+     * the cache link read it from HDFS. the file is imported again if it changed since the last import, 
+     * the same file name is written again after the sample job and for the replan job
+     */
+    private static void importSplitter(String filename, Configuration conf) throws URISyntaxException, IOException {
+        File local = new File(SPLITTER_FILE);
+        boolean useLocal = conf.get("mapreduce.task.attempt.id") != null && Files.isSymbolicLink(local.toPath())
+                && new Path(filename).getName().equals(SPLITTER_FILE);
+        String version;
         FileSystem hdfs = null;
-        try {
+        if(useLocal)
+            version = filename + " " + local.length() + " " + local.lastModified();
+        else {
             hdfs = FileSystem.get( new URI(filename), conf );
-            Path file = new Path(filename);
-            InputStream is = hdfs.open(file);
-            dis = new DataInputStream(is);
+            FileStatus status = hdfs.getFileStatus(new Path(filename));
+            version = filename + " " + status.getLen() + " " + status.getModificationTime();
+        }
+        if(version.equals(importedFile))
+            return;
+        DataInputStream dis = null;
+        try {
+            InputStream is;
+            if(useLocal)
+                is = new FileInputStream(local);
+            else
+                is = hdfs.open(new Path(filename));
+            dis = new DataInputStream(new BufferedInputStream(is));
+            SAMSequenceDictionary dict = new SAMSequenceDictionary();
             int len = dis.readInt();
+            for(int i = 0; i < len; i++) {
+                String seqName = dis.readUTF();
+                int seqLength = dis.readInt();
+                dict.addSequence(new SAMSequenceRecord(seqName, seqLength));
+            }
+            ArrayList<BedRegion> regions = new ArrayList<>();
+            len = dis.readInt();
             for(int i = 0; i < len; i++) {
                 String contig = dis.readUTF();
                 int start = dis.readInt();
                 int end = dis.readInt();
                 int key = dis.readInt();
-                regions.add(new BedRegion(contig, start, end, key));
+                BedRegion region = new BedRegion(contig, start, end, key);
+                region.overlap = dis.readInt();
+                regions.add(region);
             }
+            int[] table = new int[dis.readInt()];
+            for(int i = 0; i < table.length; i++)
+                table[i] = dis.readInt();
+            importedDict = dict;
+            importedRegions = regions;
+            importedTable = table;
+            importedFile = version;
         } finally {
             if(dis != null)
                 dis.close();
@@ -54,21 +54,23 @@ public class CommandGenerator {
         "--limitIObufferSize",
         "--limitGenomeGenerateRAM",
         "--genomeSAsparseD",
-        "--limitBAMsortRAM"};
+        "--limitBAMsortRAM",
+        "--outBAMcompression"};
     private static String[] starGenomeLoad = {
         "LoadAndExit" , "Remove", "LoadAndKeep"
     };
     private static String bowtie2Command = "bowtie2";
-    private static String[] bowtie2Options = {"-p", "-x", "-1", "-2"};
+    private static String[] bowtie2Options = {"-p", "-x", "-1", "-2", "--mm"};
     private static String cushaw2Command = "cushaw2";
     private static String[] cushaw2Options = {"-r", "-q", "-t"};
     private static String featureCountsCommand = "featureCounts";
     private static String[] featureCountsOptions = {"-T", "-a", "-o", "-s", "-Q", "-p", "-P", "-B", "-C", "-M", "-f"};
     private static String bwaCommand[] = {"bwa", "samxe"};
-    private static String bwaTool[] = {"mem", "aln", "sampe", "samse"};
+    private static String bwaTool[] = {"mem", "aln", "sampe", "samse", "shm"};
     private static String bwaOptions[] = 
         {"-p", // 0: paired (interleaved file)
-         "-t" // 1: number of threads
+         "-t", // 1: number of threads
+         "-d" // 2: drop the indices in shared memory
         };
     private static String[] elPrepCommand = {"elprep"};
     private static String[] elPrepOptions = {
@@ -220,6 +222,26 @@ public class CommandGenerator {
         return StringArray;
     }
     
+    /**
+     * runs the command in bash with its SAM output piped through samtools to get uncompressed BAM
+     */
+    public static String[] pipeToBAM(String bin, String[] command) {
+        StringBuilder pipe = new StringBuilder();
+        for(String arg : command) 
+            pipe.append(shellQuote(arg)).append(' ');
+        pipe.append("| ");
+        if(bin.endsWith("/")) 
+            pipe.append(shellQuote(bin + "samtools")); 
+        else
+            pipe.append(shellQuote(bin + "/samtools"));
+        pipe.append(" view -Su -");
+        return new String[]{"/bin/bash", "-o", "pipefail", "-c", pipe.toString()};
+    }
+    
+    private static String shellQuote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+    
     public static String[] bwaMem(String bin,
             String bwaReferenceIndex, 
             String bwaReadsFile1, 
@@ -251,6 +273,22 @@ public class CommandGenerator {
         return StringArray;        
     }
     
+    public static String[] bwaShm(String bin, String bwaReferenceIndex, boolean unload) {
+        ArrayList<String> command = new ArrayList<>();
+        if(bin.endsWith("/")) 
+            command.add(bin + bwaCommand[0]); 
+        else
+            command.add(bin + "/" + bwaCommand[0]);
+        command.add(bwaTool[4]);
+        if(unload)
+            command.add(bwaOptions[2]);
+        else
+            command.add(bwaReferenceIndex);
+        Object[] ObjectList = command.toArray();
+        String[] StringArray = Arrays.copyOf(ObjectList,ObjectList.length,String[].class);
+        return StringArray;
+    }
+    
     public static String[] featureCounts(String bin,
             String gffFile, 
             String bamFile,
@@ -299,6 +337,8 @@ public class CommandGenerator {
         command.add(new Integer(numberOfThreads).toString());
         command.add(bowtie2Options[1]);
         command.add(bowtie2ReferenceIndex);
+        // memory mapped index, the pages are shared by all bowtie2 processes on a node
+        command.add(bowtie2Options[4]);
         command.add(bowtie2Options[2]);
         command.add(bowtie2ReadFileA);
         command.add(bowtie2Options[3]);
@@ -391,7 +431,7 @@ public class CommandGenerator {
             String outputDir,
             String readsFile1, 
             String readsFile2,
-            int numberOfThreads, int overhang, int nReads, String customArgs) {
+            int numberOfThreads, int overhang, int nReads, boolean outputBam, String customArgs) {
         ArrayList<String> command = new ArrayList<>();
         if(bin.endsWith("/")) 
             command.add(bin + starBin); 
@@ -414,7 +454,16 @@ public class CommandGenerator {
         command.add("" + STARBufferSize); // make default buffersize smaller so more threads are started
         command.add(starOptions[9]);
         command.add(starGenomeLoad[2]);
-        if(passType == STARInstance.PASS2) {            
+        if(passType == STARInstance.PASS2 && outputBam) {
+            // uncompressed BAM to stdout
+            command.add(starOptions[7]);
+            command.add("BAM_Unsorted");
+            command.add(starOptions[12]);
+            command.add("BAM");
+            command.add("Unsorted");
+            command.add(starOptions[18]);
+            command.add("0");
+        } else if(passType == STARInstance.PASS2) {            
             command.add(starOptions[7]);
             command.add("SAM");
             command.add("Unsorted"); 
@@ -21,7 +21,6 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import htsjdk.samtools.SAMSequenceDictionary;
-import htsjdk.samtools.SAMSequenceRecord;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
@@ -105,6 +104,21 @@ public class HalvadeConf {
             return false;
     }
     
+    private static final String useBamStream = "usebamstream";
+    public static void setUseBamStream(Configuration conf, boolean use) {
+        if(use)
+            conf.set(useBamStream, "true");
+        else 
+            conf.set(useBamStream, "false");
+    }
+    public static boolean getUseBamStream(Configuration conf) {
+        String s = conf.get(useBamStream, "false");
+        if(s.equalsIgnoreCase("true"))
+            return true;
+        else 
+            return false;
+    }
+    
     private static final String redist = "redistribute";
     public static void setRedistribute(Configuration conf, boolean val) {
         if(val)
@@ -179,6 +193,67 @@ public class HalvadeConf {
         return conf.getInt(reduceThreads, 1);
     }
     
+    private static final String samParseThreads = "samparsethreads";
+    public static void setSamParseThreads(Configuration conf, int val) {
+        conf.setInt(samParseThreads, val);
+    }
+    public static int getSamParseThreads(Configuration conf) {
+        return conf.getInt(samParseThreads, Math.max(1, getMapThreads(conf) / 4));
+    }
+    
+    private static final String readsPerRecord = "fastqreadsperrecord";
+    private static final int DEFAULT_READS_PER_RECORD = 64;
+    public static void setFastqReadsPerRecord(Configuration conf, int val) {
+        conf.setInt(readsPerRecord, val);
+    }
+    public static int getFastqReadsPerRecord(Configuration conf) {
+        return conf.getInt(readsPerRecord, DEFAULT_READS_PER_RECORD);
+    }
+    
+    private static final String sampleReads = "samplereads";
+    public static void setSampleReads(Configuration conf, int val) {
+        conf.setInt(sampleReads, val);
+    }
+    public static int getSampleReads(Configuration conf) {
+        return conf.getInt(sampleReads, 0);
+    }
+    
+    private static final String feederChunks = "feederchunks";
+    private static final int DEFAULT_FEEDER_CHUNKS = 8;
+    public static void setFeederChunks(Configuration conf, int val) {
+        conf.setInt(feederChunks, val);
+    }
+    public static int getFeederChunks(Configuration conf) {
+        return Math.max(1, conf.getInt(feederChunks, DEFAULT_FEEDER_CHUNKS));
+    }
+    
+    private static final String transferThreads = "transferthreads";
+    private static final int DEFAULT_TRANSFER_THREADS = 4;
+    public static void setTransferThreads(Configuration conf, int val) {
+        conf.setInt(transferThreads, val);
+    }
+    public static int getTransferThreads(Configuration conf) {
+        return Math.max(1, conf.getInt(transferThreads, DEFAULT_TRANSFER_THREADS));
+    }
+    
+    private static final String feederStartupBuffer = "feederstartupbuffer";
+    private static final int DEFAULT_FEEDER_STARTUP_BUFFER = 128; // MB
+    public static void setFeederStartupBuffer(Configuration conf, int val) {
+        conf.setInt(feederStartupBuffer, val);
+    }
+    public static long getFeederStartupBuffer(Configuration conf) {
+        return Math.max(0, conf.getInt(feederStartupBuffer, DEFAULT_FEEDER_STARTUP_BUFFER)) * 1024L * 1024L;
+    }
+    
+    private static final String refCacheSize = "refcachesize";
+    public static void setRefCacheSize(Configuration conf, int val) {
+        conf.setInt(refCacheSize, val);
+    }
+    public static long getRefCacheSize(Configuration conf) {
+        // GB, 0 keeps every reference
+        return Math.max(0, conf.getInt(refCacheSize, 0)) * 1024L * 1024L * 1024L;
+    }
+    
     private static final String scratchTempDirName = "tempdir";
     public static void setScratchTempDir(Configuration conf, String val) {
         if(!val.endsWith("/"))
@@ -251,11 +326,42 @@ public class HalvadeConf {
         fs.delete(new Path(filepath), true);
     }
     
-    public static boolean addTaskRunning(Configuration conf, String val) throws IOException, URISyntaxException {
-        val = val.substring(0, val.lastIndexOf("_")); // rewrite file if second attempt
-        String filepath = conf.get(outdir) + tasksDone + val;
-        FileSystem fs = FileSystem.get(new URI(filepath), conf);
-        return fs.createNewFile(new Path(filepath));
+    /**
+     * every task that starts takes the next free slot, an empty file named after its number,
+     * the slots are taken in order so the first free slot is the number of started tasks
+     * and a task only needs a few lookups instead of listing the files of all tasks
+     */
+    public static int addTaskRunning(Configuration conf, String val) throws IOException, URISyntaxException {
+        String filedir = getTaskSlotDir(conf);
+        FileSystem fs = FileSystem.get(new URI(filedir), conf);
+        int slot = getTasksStarted(fs, filedir, getNumberOfFiles(conf));
+        while(!fs.createNewFile(new Path(filedir + slot)))
+            slot++;
+        conf.setInt(taskSlot, slot);
+        Logger.DEBUG("task " + val + " has slot " + slot);
+        return slot;
+    }
+    
+    private static final String taskSlot = "taskslot";
+    protected static String getTaskSlotDir(Configuration conf) {
+        // the slots of every job are counted separately
+        return conf.get(outdir) + tasksDone + conf.get("mapreduce.job.id") + "/";
+    }
+    
+    /**
+     * binary search for the first free slot, a task attempt that is started again takes
+     * an extra slot so the result is at most the number of tasks
+     */
+    protected static int getTasksStarted(FileSystem fs, String filedir, int tasks) throws IOException {
+        int lo = 0, hi = tasks;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(fs.exists(new Path(filedir + mid)))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
     }
     
     private static final String totalContainers = "containers";
@@ -266,32 +372,52 @@ public class HalvadeConf {
         return conf.getInt(totalContainers, 1);
     }
     public static int getMapTasksLeft(Configuration conf) throws IOException, URISyntaxException {
-        int containers = conf.getInt(totalContainers, 1);        
-        int tasks = 0;
-        String filedir = conf.get(outdir) + tasksDone;
-        FileSystem fs = FileSystem.get(new URI(filedir), conf);
-        FileStatus[] files = fs.listStatus(new Path(filedir));
-        for(FileStatus file : files) {
-            if (!file.isDirectory()) {
-                tasks++;
-            }
+        int tasks = getNumberOfFiles(conf);
+        // the slot of this task is the number of tasks started before it
+        int started = conf.getInt(taskSlot, -1) + 1;
+        if(started == 0) {
+            String filedir = getTaskSlotDir(conf);
+            started = getTasksStarted(FileSystem.get(new URI(filedir), conf), filedir, tasks);
         }
-        Logger.DEBUG("containers left: " + (Integer.parseInt(conf.get("mapred.map.tasks")) - tasks));
-        return Integer.parseInt(conf.get("mapred.map.tasks")) - tasks;        
+        Logger.DEBUG("containers left: " + (tasks - started));
+        return tasks - started;        
     }
     
     public static boolean allTasksCompleted(Configuration conf) throws IOException, URISyntaxException {
-        int tasks = 0;
-        String filedir = conf.get(outdir) + tasksDone;
+        int tasks = getNumberOfFiles(conf);
+        String filedir = getTaskSlotDir(conf);
         FileSystem fs = FileSystem.get(new URI(filedir), conf);
-        FileStatus[] files = fs.listStatus(new Path(filedir));
-        for(FileStatus file : files) {
-            if (!file.isDirectory()) {
-                tasks++;
-            }
-        }
-        Logger.DEBUG("tasks started: " + tasks);
-        return tasks >= Integer.parseInt(conf.get("mapred.map.tasks"));        
+        // the last slot is only taken when all slots before it are
+        boolean started = tasks <= 0 || fs.exists(new Path(filedir + (tasks - 1)));
+        Logger.DEBUG("all tasks started: " + started);
+        return started;
+    }
+    
+    private static final String replanned = "replanned/";
+    /**
+     * marks a reducer whose regions are processed again in smaller regions by a follow-up job,
+     * the attempts of this reducer that start after the mark skip all their keys
+     */
+    public static void setReducerReplanned(Configuration conf, String jobId, int reducer) throws IOException, URISyntaxException {
+        String file = conf.get(outdir) + replanned + jobId + "/" + reducer;
+        FileSystem fs = FileSystem.get(new URI(file), conf);
+        fs.createNewFile(new Path(file));
+    }
+    public static boolean isReducerReplanned(Configuration conf, int reducer) throws IOException, URISyntaxException {
+        String file = conf.get(outdir) + replanned + conf.get("mapreduce.job.id") + "/" + reducer;
+        FileSystem fs = FileSystem.get(new URI(file), conf);
+        return fs.exists(new Path(file));
+    }
+    
+    private static final String mapOutputDir = "mapOutputDir";
+    /**
+     * the mappers also write their output to this directory so a replan job can read it again
+     */
+    public static void setMapOutputDir(Configuration conf, String dir) {
+        conf.set(mapOutputDir, dir);
+    }
+    public static String getMapOutputDir(Configuration conf) {
+        return conf.get(mapOutputDir);
     }
     
     private static final String refOnHDFSName = "hdfsref";
@@ -326,29 +452,13 @@ public class HalvadeConf {
         return Integer.parseInt(conf.get("mapred.map.tasks"));
     }
     
-    private static final String dictionarySequenceName = "seqdictionary_";
-    private static final String dictionarySequenceLength = "seqdictionarylength_";
-    private static final String dictionaryCount = "seqcount";
-    public static void setSequenceDictionary(Configuration conf, SAMSequenceDictionary dict) throws IOException, URISyntaxException {
-        int counter = 0;
-        for(SAMSequenceRecord seq : dict.getSequences()) {
-            conf.set(dictionarySequenceName + counter, seq.getSequenceName());
-            conf.setInt(dictionarySequenceLength + counter, seq.getSequenceLength());
-            counter++;
-        }
-        conf.setInt(dictionaryCount, counter);
-    }
-    
     public static SAMSequenceDictionary getSequenceDictionary(Configuration conf) throws IOException {
-        int counter = conf.getInt(dictionaryCount, 0);
-        SAMSequenceDictionary dict = new SAMSequenceDictionary();
-        for(int i = 0; i < counter; i++) {
-            String seqName = conf.get(dictionarySequenceName + i);
-            int seqLength = conf.getInt(dictionarySequenceLength + i, 0);
-            SAMSequenceRecord seq = new SAMSequenceRecord(seqName, seqLength);
-            dict.addSequence(seq);
+        try {
+            // the dictionary is stored with the regions of the chromosome splitter
+            return ChromosomeSplitter.getSequenceDictionary(getBedRegions(conf), conf);
+        } catch (URISyntaxException ex) {
+            throw new IOException(ex);
         }
-        return dict;
     }
     
     
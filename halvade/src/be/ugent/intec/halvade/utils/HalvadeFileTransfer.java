@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.MD5MD5CRC32FileChecksum;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * copies files between HDFS and local scratch with a pool of threads
+ *
+ * a download is split in ranges of one HDFS block that are read at the same time,
+ * the ranges are written to a .part file and every finished range is logged
+ * in a .part.done file so a failed download only fetches the missing ranges again.
+ * the .part file gets its final name once it matches the HDFS checksum
+ * (the MD5 of the MD5s of the CRCs of every block), file systems without
+ * this checksum only get a length check. the checksum of the HDFS file is
+ * kept in a .checksum file next to the download, a local file is only reused
+ * if that still matches the file on HDFS
+ *
+ * @author ddecap
+ */
+public class HalvadeFileTransfer {
+    protected static final String PART_SUFFIX = ".part";
+    protected static final String DONE_SUFFIX = ".part.done";
+    protected static final String CHECKSUM_SUFFIX = ".checksum";
+    protected static final int BUFFER_SIZE = 1 << 20;
+    protected TaskInputOutputContext<?, ?, ?, ?> context;
+    protected ExecutorService pool;
+    protected int tries;
+    protected AtomicLong transferred;
+
+    public HalvadeFileTransfer(TaskInputOutputContext<?, ?, ?, ?> context, int tries) {
+        this.context = context;
+        this.tries = tries;
+        pool = Executors.newFixedThreadPool(HalvadeConf.getTransferThreads(context.getConfiguration()));
+        transferred = new AtomicLong(0);
+    }
+
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * downloads every file from[i] to to[i], a file that was downloaded before is kept
+     * if its stored checksum matches the file on HDFS
+     */
+    public void download(FileSystem fs, String[] from, String[] to) throws IOException, InterruptedException {
+        List<Integer> pending = new ArrayList<>();
+        for(int i = 0; i < from.length; i++) {
+            File f = new File(to[i]);
+            if(f.exists() && isDownloaded(fs, new Path(from[i]), to[i])) {
+                Logger.DEBUG("file \"" + to[i] + "\" exists");
+            } else {
+                if(f.exists()) {
+                    Logger.DEBUG("checksum of \"" + to[i] + "\" doesn't match " + from[i]);
+                    f.delete();
+                }
+                new File(to[i] + CHECKSUM_SUFFIX).delete();
+                pending.add(i);
+            }
+        }
+        transferred.set(0);
+        int attempt = 0;
+        while(!pending.isEmpty()) {
+            if(attempt++ == tries)
+                throw new IOException("failed to download " + from[pending.get(0)] + " from HDFS");
+            List<List<Future<Object>>> ranges = new ArrayList<>();
+            for(int i : pending)
+                ranges.add(startDownload(fs, new Path(from[i]), to[i]));
+            List<Integer> failed = new ArrayList<>();
+            for(int j = 0; j < pending.size(); j++) {
+                int i = pending.get(j);
+                if(!waitFor(ranges.get(j), from[i]) || !finishDownload(fs, new Path(from[i]), to[i]))
+                    failed.add(i);
+                else
+                    Logger.DEBUG(from[i] + " downloaded");
+            }
+            pending = failed;
+        }
+        context.getCounter(HalvadeCounters.FIN_FROM_HDFS).increment(transferred.get());
+    }
+
+    /**
+     * uploads every file from[i] to to[i], a file that exists on HDFS with the correct checksum is kept
+     */
+    public void upload(FileSystem fs, String[] from, String[] to) throws IOException, InterruptedException {
+        List<Integer> pending = new ArrayList<>();
+        for(int i = 0; i < from.length; i++) {
+            if(fs.exists(new Path(to[i])) && verify(fs, new Path(to[i]), from[i]))
+                Logger.DEBUG("file \"" + to[i] + "\" exists");
+            else
+                pending.add(i);
+        }
+        transferred.set(0);
+        int attempt = 0;
+        while(!pending.isEmpty()) {
+            if(attempt++ == tries)
+                throw new IOException("failed to upload " + from[pending.get(0)] + " to HDFS");
+            List<Future<Object>> uploads = new ArrayList<>();
+            for(int i : pending)
+                uploads.add(pool.submit(uploadFile(fs, from[i], to[i])));
+            List<Integer> failed = new ArrayList<>();
+            for(int j = 0; j < pending.size(); j++) {
+                int i = pending.get(j);
+                if(!waitFor(uploads.subList(j, j + 1), from[i]) || !verify(fs, new Path(to[i]), from[i]))
+                    failed.add(i);
+                else
+                    Logger.DEBUG(from[i] + " uploaded");
+            }
+            pending = failed;
+        }
+        context.getCounter(HalvadeCounters.FOUT_TO_HDFS).increment(transferred.get());
+    }
+
+    protected boolean waitFor(List<Future<Object>> tasks, String file) throws InterruptedException {
+        boolean ok = true;
+        for(Future<Object> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException ex) {
+                Logger.DEBUG("failed to transfer " + file + ": " + ex.getCause().getLocalizedMessage());
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * starts the download of the ranges that aren't in the .part file yet
+     */
+    protected List<Future<Object>> startDownload(final FileSystem fs, final Path from, String to) throws IOException {
+        FileStatus status = fs.getFileStatus(from);
+        final String part = to + PART_SUFFIX;
+        final RangeLog log = new RangeLog(to + DONE_SUFFIX, status);
+        if(!log.resumed) {
+            new File(part).delete();
+        }
+        try (RandomAccessFile out = new RandomAccessFile(part, "rw")) {
+            out.setLength(status.getLen());
+        }
+        long rangeSize = Math.max(BUFFER_SIZE, status.getBlockSize());
+        List<Future<Object>> ranges = new ArrayList<>();
+        for(long start = 0; start < status.getLen(); start += rangeSize) {
+            final long rangeStart = start;
+            final long rangeLength = Math.min(rangeSize, status.getLen() - start);
+            if(log.isDone(rangeStart))
+                continue;
+            ranges.add(pool.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws IOException {
+                    downloadRange(fs, from, part, rangeStart, rangeLength);
+                    log.setDone(rangeStart);
+                    return null;
+                }
+            }));
+        }
+        if(log.resumed)
+            Logger.DEBUG("resuming download of " + from + ", " + ranges.size() + " ranges left");
+        return ranges;
+    }
+
+    protected void downloadRange(FileSystem fs, Path from, String part, long start, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (FSDataInputStream in = fs.open(from); RandomAccessFile out = new RandomAccessFile(part, "rw")) {
+            long done = 0;
+            out.seek(start);
+            while(done < length) {
+                int read = in.read(start + done, buffer, 0, (int)Math.min(buffer.length, length - done));
+                if(read < 0)
+                    throw new EOFException("unexpected end of " + from + " at " + (start + done));
+                out.write(buffer, 0, read);
+                done += read;
+            }
+        }
+        transferred.addAndGet(length);
+    }
+
+    /**
+     * renames the .part file if it is correct, else it is removed so the next attempt starts over
+     */
+    protected boolean finishDownload(FileSystem fs, Path from, String to) throws IOException, InterruptedException {
+        String part = to + PART_SUFFIX;
+        File done = new File(to + DONE_SUFFIX);
+        if(!verify(fs, from, part)) {
+            Logger.DEBUG("checksum of " + part + " doesn't match " + from);
+            new File(part).delete();
+            done.delete();
+            return false;
+        }
+        done.delete();
+        if(!new File(part).renameTo(new File(to)))
+            return false;
+        try (FileWriter out = new FileWriter(to + CHECKSUM_SUFFIX)) {
+            out.write(getRemoteChecksum(fs, from) + "\n");
+        }
+        return true;
+    }
+
+    /**
+     * checks the .checksum file of an earlier download against the file on HDFS
+     */
+    protected boolean isDownloaded(FileSystem fs, Path from, String to) throws IOException {
+        File f = new File(to + CHECKSUM_SUFFIX);
+        if(!f.exists() || new File(to).length() != fs.getFileStatus(from).getLen())
+            return false;
+        try (BufferedReader in = new BufferedReader(new FileReader(f))) {
+            return getRemoteChecksum(fs, from).equals(in.readLine());
+        }
+    }
+
+    /**
+     * the length and HDFS checksum of a file, the modification time if the file system has no checksum
+     */
+    protected String getRemoteChecksum(FileSystem fs, Path remote) throws IOException {
+        FileStatus status = fs.getFileStatus(remote);
+        FileChecksum checksum = fs.getFileChecksum(remote);
+        return status.getLen() + " " + (checksum == null ? "" + status.getModificationTime() : checksum.toString());
+    }
+
+    protected Callable<Object> uploadFile(final FileSystem fs, final String from, final String to) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws IOException {
+                fs.copyFromLocalFile(false, true, new Path(from), new Path(to));
+                transferred.addAndGet(new File(from).length());
+                return null;
+            }
+        };
+    }
+
+    /**
+     * compares the local file with the checksum of the file on HDFS
+     */
+    protected boolean verify(FileSystem fs, Path remote, String local) throws IOException, InterruptedException {
+        long length = new File(local).length();
+        if(fs.getFileStatus(remote).getLen() != length)
+            return false;
+        FileChecksum checksum = fs.getFileChecksum(remote);
+        if(!(checksum instanceof MD5MD5CRC32FileChecksum) || length == 0)
+            return true;
+        // the CRC parameters are only available in the serialized checksum
+        DataOutputBuffer out = new DataOutputBuffer();
+        checksum.write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        int bytesPerCRC = in.readInt();
+        long crcPerBlock = in.readLong();
+        MD5Hash md5 = MD5Hash.read(in);
+        DataChecksum.Type type = ((MD5MD5CRC32FileChecksum) checksum).getCrcType();
+        return md5.equals(getChecksum(local, length, bytesPerCRC, crcPerBlock, type));
+    }
+
+    /**
+     * computes the checksum HDFS would have for the local file, the blocks are done in parallel
+     * crcPerBlock is 0 if the file has a single block
+     */
+    protected MD5Hash getChecksum(final String file, long length, final int bytesPerCRC, long crcPerBlock,
+            final DataChecksum.Type type) throws IOException, InterruptedException {
+        long blockSize = crcPerBlock > 0 ? crcPerBlock * bytesPerCRC : length;
+        List<Future<byte[]>> blocks = new ArrayList<>();
+        for(long start = 0; start < length; start += blockSize) {
+            final long blockStart = start;
+            final long blockLength = Math.min(blockSize, length - start);
+            blocks.add(pool.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return getBlockChecksum(file, blockStart, blockLength, bytesPerCRC, type);
+                }
+            }));
+        }
+        MessageDigest md5 = MD5Hash.getDigester();
+        try {
+            for(Future<byte[]> block : blocks)
+                md5.update(block.get());
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+        return new MD5Hash(md5.digest());
+    }
+
+    protected byte[] getBlockChecksum(String file, long start, long length, int bytesPerCRC, DataChecksum.Type type) throws IOException {
+        DataChecksum crc = DataChecksum.newDataChecksum(type, bytesPerCRC);
+        MessageDigest md5 = MD5Hash.getDigester();
+        // whole chunks so only the last chunk of the block can be partial
+        ByteBuffer data = ByteBuffer.allocate(Math.max(1, BUFFER_SIZE / bytesPerCRC) * bytesPerCRC);
+        ByteBuffer sums = ByteBuffer.allocate(data.capacity() / bytesPerCRC * crc.getChecksumSize());
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            FileChannel channel = in.getChannel();
+            long done = 0;
+            while(done < length) {
+                data.clear();
+                data.limit((int)Math.min(data.capacity(), length - done));
+                while(data.hasRemaining()) {
+                    if(channel.read(data, start + done + data.position()) < 0)
+                        throw new EOFException("unexpected end of " + file);
+                }
+                data.flip();
+                int chunks = (data.limit() + bytesPerCRC - 1) / bytesPerCRC;
+                sums.clear();
+                crc.calculateChunkedSums(data, sums);
+                md5.update(sums.array(), 0, chunks * crc.getChecksumSize());
+                done += data.limit();
+            }
+        }
+        return md5.digest();
+    }
+
+    /**
+     * the finished ranges of a .part file, the first line identifies the source file
+     */
+    protected static class RangeLog {
+        protected String file;
+        protected Set<Long> done;
+        protected boolean resumed;
+
+        protected RangeLog(String file, FileStatus source) throws IOException {
+            this.file = file;
+            done = new HashSet<>();
+            String id = source.getLen() + " " + source.getModificationTime();
+            File f = new File(file);
+            if(f.exists()) {
+                try (BufferedReader in = new BufferedReader(new FileReader(f))) {
+                    if(id.equals(in.readLine())) {
+                        resumed = true;
+                        String line;
+                        while((line = in.readLine()) != null) {
+                            try {
+                                done.add(Long.parseLong(line));
+                            } catch (NumberFormatException ex) {
+                                // partially written line
+                            }
+                        }
+                    }
+                }
+            }
+            if(!resumed) {
+                try (FileWriter out = new FileWriter(f)) {
+                    out.write(id + "\n");
+                }
+            }
+        }
+
+        protected boolean isDone(long start) {
+            return done.contains(start);
+        }
+
+        protected synchronized void setDone(long start) throws IOException {
+            try (FileWriter out = new FileWriter(file, true)) {
+                out.write(start + "\n");
+            }
+        }
+    }
+}
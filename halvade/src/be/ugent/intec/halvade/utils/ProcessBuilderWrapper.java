@@ -55,6 +55,8 @@ public class ProcessBuilderWrapper {
     StreamGobbler stderr;
     StreamGobbler stdout;
     BufferedWriter stdin;
+    BufferedOutputStream stdinBytes;
+    protected static final int STDIN_BUFFER_SIZE = 1 << 20;
     ProcMon mon;
     long startTime, estimatedTime;
     int threads = 1;
@@ -106,7 +108,6 @@ public class ProcessBuilderWrapper {
                 this.stderr = new StreamGobbler(p.getErrorStream(), stderr_, "[PROCESS_ERR]");
                 this.stderr.start();
             } 
-            stdin = new BufferedWriter(new OutputStreamWriter(p.getOutputStream()));
         } catch (IOException ex) {
             Logger.EXCEPTION(ex);
             throw new ProcessException(ex.getMessage(), -1);
@@ -147,10 +148,22 @@ public class ProcessBuilderWrapper {
         return p.getOutputStream();
     }
     
-    public BufferedWriter getSTDINWriter() {
+    /*
+     * the buffers are made when stdin is first used, most processes never get input.
+     * use either the writer or the byte stream, not both
+     */
+    public synchronized BufferedWriter getSTDINWriter() {
+        if(stdin == null)
+            stdin = new BufferedWriter(new OutputStreamWriter(p.getOutputStream()));
         return stdin;
     }
     
+    public synchronized BufferedOutputStream getSTDINByteStream() {
+        if(stdinBytes == null)
+            stdinBytes = new BufferedOutputStream(p.getOutputStream(), STDIN_BUFFER_SIZE);
+        return stdinBytes;
+    }
+    
     public int waitForCompletion() throws InterruptedException {
         int val = p.waitFor();
         estimatedTime = System.currentTimeMillis() - startTime;
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import be.ugent.intec.halvade.hadoop.datatypes.EncodedSAMRecordWritable;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * writes BAM records that are already encoded to a BGZF compressed BAM file,
+ * the records are not decoded and written in the order they are given,
+ * the header must be coordinate sorted and the records are checked to be in that order
+ *
+ * @author ddecap
+ */
+public class RawBAMWriter {
+    protected static final byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+    protected BlockCompressedOutputStream out;
+    protected BinaryCodec codec;
+    protected SAMFileHeader header;
+    protected int lastRef = 0, lastStart = 0;
+    protected long count = 0;
+
+    public RawBAMWriter(File output, SAMFileHeader header) throws IOException {
+        if(header.getSortOrder() != SAMFileHeader.SortOrder.coordinate)
+            throw new IOException("raw BAM records can only be written presorted with a coordinate sorted header, not " + header.getSortOrder());
+        this.header = header;
+        out = new BlockCompressedOutputStream(output);
+        codec = new BinaryCodec(out);
+        writeHeader(header);
+    }
+
+    protected void writeHeader(SAMFileHeader header) {
+        StringWriter headerText = new StringWriter();
+        new SAMTextHeaderCodec().encode(headerText, header);
+        codec.writeBytes(BAM_MAGIC);
+        codec.writeString(headerText.toString(), true, false);
+        codec.writeInt(header.getSequenceDictionary().size());
+        for (SAMSequenceRecord seq : header.getSequenceDictionary().getSequences()) {
+            codec.writeString(seq.getSequenceName(), true, true);
+            codec.writeInt(seq.getSequenceLength());
+        }
+    }
+
+    public void addAlignment(EncodedSAMRecordWritable record) throws IOException {
+        checkOrder(record.getReferenceIndex(), record.getAlignmentStart());
+        out.write(record.getData(), 0, record.getLength());
+        count++;
+    }
+
+    /**
+     * unmapped records without a reference come last in a coordinate sorted BAM file
+     */
+    protected void checkOrder(int ref, int start) throws IOException {
+        boolean sorted;
+        if(lastRef < 0)
+            sorted = ref < 0;
+        else if(ref < 0)
+            sorted = true;
+        else
+            sorted = ref > lastRef || (ref == lastRef && start >= lastStart);
+        if(!sorted)
+            throw new IOException("record " + count + " at " + ref + ":" + start + " comes after " + lastRef + ":" + lastStart 
+                    + ", the records are not coordinate sorted");
+        lastRef = ref;
+        lastStart = start;
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+}
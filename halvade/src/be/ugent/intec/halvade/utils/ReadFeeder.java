@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import be.ugent.intec.halvade.hadoop.datatypes.FastqReadBlock;
+import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
+import be.ugent.intec.halvade.tools.AlignerInstance;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ *
+ * @author ddecap
+ */
+public class ReadFeeder extends Thread {
+
+    /*
+     * writes the reads to the aligner in its own thread
+     * the mapper copies every block of reads in a free chunk of a bounded ring
+     * and goes on reading the input while this thread writes the chunks to the aligner,
+     * the mapper only waits when all chunks are full
+     * the first write starts the aligner, until then the mapper reads the input
+     * in extra chunks up to the startup buffer size
+     */
+    protected static final long POLL_MS = 100;
+    protected static final long NANOS_PER_MS = 1000000;
+    protected AlignerInstance instance;
+    protected TaskInputOutputContext<?, ?, ?, ?> context;
+    protected BlockingQueue<FastqReadBlock> free;
+    protected BlockingQueue<FastqReadBlock> filled;
+    protected final FastqReadBlock end;
+    protected volatile Exception error;
+    // time the mapper waits for a free chunk, the aligner is the bottleneck
+    protected long inputStallTime = 0;
+    // time spent writing to the aligner, mostly blocked on a full pipe
+    protected long pipeBlockedTime = 0;
+    // time this thread waits for reads, the aligner only has what is left in the pipe
+    protected long alignerIdleTime = 0;
+    protected long chunks = 0;
+    protected long startupBuffer;
+    protected long startupBytes = 0;
+    protected int startupChunks = 0;
+    protected volatile boolean alignerStarted = false;
+
+    public ReadFeeder(AlignerInstance instance, TaskInputOutputContext<?, ?, ?, ?> context) {
+        this.instance = instance;
+        this.context = context;
+        int size = HalvadeConf.getFeederChunks(context.getConfiguration());
+        free = new ArrayBlockingQueue<>(size);
+        // the number of chunks is bounded by the free chunks and the startup buffer
+        filled = new LinkedBlockingQueue<>();
+        for(int i = 0; i < size; i++)
+            free.add(new FastqReadBlock());
+        end = new FastqReadBlock();
+        startupBuffer = HalvadeConf.getFeederStartupBuffer(context.getConfiguration());
+        setName("read feeder");
+    }
+
+    public void feed(FastqReadBlock reads) throws IOException, InterruptedException {
+        checkError();
+        FastqReadBlock chunk = free.poll();
+        if(chunk == null && !alignerStarted && startupBytes < startupBuffer) {
+            // the aligner is still starting, keep reading the input
+            chunk = new FastqReadBlock();
+            startupBytes += reads.getLength();
+            startupChunks++;
+        }
+        if(chunk == null) {
+            long start = System.nanoTime();
+            while(chunk == null) {
+                chunk = free.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                checkError();
+            }
+            inputStallTime += System.nanoTime() - start;
+        }
+        chunk.set(reads);
+        filled.put(chunk);
+    }
+
+    /**
+     * waits until all reads are written to the aligner
+     */
+    public void close() throws IOException, InterruptedException {
+        filled.put(end);
+        join();
+        context.getCounter(HalvadeCounters.TIME_FEEDER_INPUT_STALL).increment(inputStallTime / NANOS_PER_MS);
+        context.getCounter(HalvadeCounters.TIME_FEEDER_PIPE_BLOCKED).increment(pipeBlockedTime / NANOS_PER_MS);
+        context.getCounter(HalvadeCounters.TIME_ALIGNER_IDLE).increment(alignerIdleTime / NANOS_PER_MS);
+        Logger.DEBUG("read feeder wrote " + chunks + " chunks, " + startupChunks + " chunks buffered at startup, input stall: " + inputStallTime / NANOS_PER_MS
+                + " ms, pipe blocked: " + pipeBlockedTime / NANOS_PER_MS + " ms, aligner idle: " + alignerIdleTime / NANOS_PER_MS + " ms");
+        checkError();
+    }
+
+    protected void checkError() throws IOException {
+        if(error != null)
+            throw new IOException("writing reads to the aligner failed", error);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while(true) {
+                FastqReadBlock chunk = filled.poll();
+                if(chunk == null) {
+                    long start = System.nanoTime();
+                    chunk = filled.take();
+                    alignerIdleTime += System.nanoTime() - start;
+                }
+                if(chunk == end)
+                    break;
+                long start = System.nanoTime();
+                instance.writeReads(chunk);
+                pipeBlockedTime += System.nanoTime() - start;
+                alignerStarted = true;
+                chunks++;
+                // the chunks of the startup buffer are dropped once the ring is full
+                free.offer(chunk);
+            }
+        } catch (IOException | InterruptedException | RuntimeException ex) {
+            Logger.EXCEPTION(ex);
+            error = ex;
+        }
+    }
+}
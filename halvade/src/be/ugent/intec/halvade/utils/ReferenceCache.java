@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * node local cache of reference files that is shared by all jobs
+ *
+ * every entry is a directory named after the MD5 of the HDFS checksum of the main file
+ * (the fasta, the STAR Genome file or a sites file), so the same reference is found again
+ * whatever its path on HDFS and different references never share an entry.
+ * the other files of the reference are added to the entry when a tool needs them,
+ * the manifest of the entry has the length, modification time and checksum of every file.
+ * a task holds a shared lock on the entry it uses until it exits, when the cache is larger
+ * than the size limit the least recently used entries without a shared lock are removed
+ *
+ * @author ddecap
+ */
+public class ReferenceCache {
+    protected static final String CACHE_DIR = "halvade_refcache/";
+    protected static final String CACHE_LOCK = "refcache.lock";
+    protected static final String MANIFEST = "manifest";
+    protected static final String IN_USE = "in_use.lock";
+    protected static final String NO_CHECKSUM = "-";
+    // the keys of the entries this task uses, the locks are released when the task exits
+    protected static final Map<String, FileLock> inUse = new HashMap<>();
+    protected TaskInputOutputContext<?, ?, ?, ?> context;
+    protected String cacheDir;
+    protected long maxSize;
+
+    public ReferenceCache(TaskInputOutputContext<?, ?, ?, ?> context) {
+        this.context = context;
+        String refDir = HalvadeConf.getRefDirOnScratch(context.getConfiguration());
+        if(!refDir.endsWith("/")) refDir = refDir + "/";
+        cacheDir = refDir + CACHE_DIR;
+        maxSize = HalvadeConf.getRefCacheSize(context.getConfiguration());
+    }
+
+    /**
+     * makes sure the files source + suffix are in the cache, optional files are only added if they exist on HDFS
+     * @return the local path of source, the files have the same name as on HDFS
+     */
+    public String get(FileSystem fs, String source, String[] suffixes, String[] optionalSuffixes) throws IOException {
+        new File(cacheDir).mkdirs();
+        HalvadeFileLock lock = new HalvadeFileLock(context, cacheDir, CACHE_LOCK);
+        try {
+            lock.getLock();
+            String key = getKey(fs, new Path(source + suffixes[0]));
+            String entry = cacheDir + key + "/";
+            new File(entry).mkdirs();
+            // lock before anything is downloaded so no other task removes the entry
+            lockEntry(key);
+            // the files of a directory are stored in the entry itself
+            String localBase = entry + (source.endsWith("/") ? "" : new Path(source).getName());
+            Map<String, String[]> manifest = readManifest(entry);
+
+            List<String> from = new ArrayList<>(), to = new ArrayList<>();
+            List<FileStatus> status = new ArrayList<>();
+            long missing = 0;
+            List<String> files = new ArrayList<>(Arrays.asList(suffixes));
+            if(optionalSuffixes != null) {
+                for(String suffix : optionalSuffixes) {
+                    if(fs.exists(new Path(source + suffix)))
+                        files.add(suffix);
+                }
+            }
+            for(String suffix : files) {
+                FileStatus st = fs.getFileStatus(new Path(source + suffix));
+                String name = localBase.substring(entry.length()) + suffix;
+                if(!isCached(fs, st, entry + name, manifest.get(name))) {
+                    new File(entry + name).delete();
+                    from.add(source + suffix);
+                    to.add(entry + name);
+                    status.add(st);
+                    missing += st.getLen();
+                }
+            }
+            if(!from.isEmpty()) {
+                Logger.INFO("downloading " + from.size() + " missing reference files to local cache " + entry);
+                evict(missing);
+                HalvadeFileUtils.downloadFilesFromHDFS(context, fs, from, to);
+                for(int i = 0; i < to.size(); i++) {
+                    FileStatus st = status.get(i);
+                    manifest.put(to.get(i).substring(entry.length()),
+                            new String[]{"" + st.getLen(), "" + st.getModificationTime(), getChecksum(fs, st.getPath())});
+                }
+                writeManifest(entry, source, manifest);
+                Logger.INFO("FINISHED downloading the reference files to local cache");
+            } else
+                Logger.DEBUG("reference files found in local cache " + entry);
+            // the modification time of the manifest is the last use of the entry
+            new File(entry + MANIFEST).setLastModified(System.currentTimeMillis());
+            return localBase;
+        } catch (InterruptedException ex) {
+            throw new IOException("interrupted while waiting for the reference cache", ex);
+        } finally {
+            lock.releaseLock();
+        }
+    }
+
+    /**
+     * the key is the MD5 of the checksum of the file on HDFS, file systems without checksum
+     * use the path, length and modification time instead
+     */
+    protected String getKey(FileSystem fs, Path file) throws IOException {
+        FileChecksum checksum = fs.getFileChecksum(file);
+        String id;
+        if(checksum != null)
+            id = checksum.getAlgorithmName() + ":" + toHex(checksum);
+        else {
+            FileStatus st = fs.getFileStatus(file);
+            id = st.getPath().toString() + ":" + st.getLen() + ":" + st.getModificationTime();
+        }
+        return MD5Hash.digest(id).toString();
+    }
+
+    protected String getChecksum(FileSystem fs, Path file) throws IOException {
+        FileChecksum checksum = fs.getFileChecksum(file);
+        return checksum == null ? NO_CHECKSUM : toHex(checksum);
+    }
+
+    protected static String toHex(FileChecksum checksum) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        checksum.write(out);
+        StringBuilder hex = new StringBuilder();
+        for(int i = 0; i < out.getLength(); i++)
+            hex.append(String.format("%02x", out.getData()[i]));
+        return hex.toString();
+    }
+
+    /**
+     * a file is cached if the local file is complete and the manifest has the same length and
+     * modification time, a file with a new modification time is checked with its checksum
+     */
+    protected boolean isCached(FileSystem fs, FileStatus st, String local, String[] record) throws IOException {
+        if(record == null || !new File(local).exists() || new File(local).length() != st.getLen()
+                || Long.parseLong(record[0]) != st.getLen())
+            return false;
+        if(Long.parseLong(record[1]) == st.getModificationTime())
+            return true;
+        String checksum = getChecksum(fs, st.getPath());
+        if(checksum.equals(NO_CHECKSUM) || !checksum.equals(record[2]))
+            return false;
+        record[1] = "" + st.getModificationTime();
+        return true;
+    }
+
+    protected Map<String, String[]> readManifest(String entry) throws IOException {
+        Map<String, String[]> manifest = new HashMap<>();
+        File file = new File(entry + MANIFEST);
+        if(!file.exists())
+            return manifest;
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line = in.readLine(); // source of the entry
+            while((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if(fields.length == 4)
+                    manifest.put(fields[0], Arrays.copyOfRange(fields, 1, 4));
+            }
+        }
+        return manifest;
+    }
+
+    protected void writeManifest(String entry, String source, Map<String, String[]> manifest) throws IOException {
+        File tmp = new File(entry + MANIFEST + ".tmp");
+        try (FileWriter out = new FileWriter(tmp)) {
+            out.write(source + "\n");
+            for(Map.Entry<String, String[]> file : manifest.entrySet()) {
+                String[] record = file.getValue();
+                out.write(file.getKey() + "\t" + record[0] + "\t" + record[1] + "\t" + record[2] + "\n");
+            }
+        }
+        if(!tmp.renameTo(new File(entry + MANIFEST)))
+            throw new IOException("failed to write the manifest of " + entry);
+    }
+
+    protected void lockEntry(String key) throws IOException {
+        synchronized(inUse) {
+            if(inUse.containsKey(key))
+                return;
+            String entry = cacheDir + key + "/";
+            RandomAccessFile file = new RandomAccessFile(entry + IN_USE, "rw");
+            FileLock lock = file.getChannel().tryLock(0, Long.MAX_VALUE, true);
+            if(lock == null) {
+                file.close();
+                throw new IOException("reference cache entry " + entry + " is being removed");
+            }
+            inUse.put(key, lock);
+        }
+    }
+
+    /**
+     * removes the least recently used entries until the needed bytes fit in the size limit,
+     * entries with a shared lock are in use by a task and are kept
+     */
+    protected void evict(long needed) throws IOException {
+        if(maxSize <= 0)
+            return;
+        File[] entries = new File(cacheDir).listFiles();
+        if(entries == null)
+            return;
+        long size = 0;
+        for(File entry : entries)
+            size += getSize(entry);
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(new File(a, MANIFEST).lastModified(), new File(b, MANIFEST).lastModified());
+            }
+        });
+        for(int i = 0; i < entries.length && size + needed > maxSize; i++) {
+            File entry = entries[i];
+            if(!entry.isDirectory() || inUse.containsKey(entry.getName()))
+                continue;
+            long entrySize = getSize(entry);
+            try (RandomAccessFile file = new RandomAccessFile(new File(entry, IN_USE), "rw")) {
+                FileLock lock = file.getChannel().tryLock();
+                if(lock == null) {
+                    Logger.DEBUG("reference cache entry " + entry + " is in use");
+                    continue;
+                }
+                Logger.INFO("removing least recently used reference " + entry + " from the local cache");
+                HalvadeFileUtils.deleteDir(entry);
+                size -= entrySize;
+                lock.release();
+            } catch (OverlappingFileLockException ex) {
+                // used by this task
+            }
+        }
+        if(size + needed > maxSize)
+            Logger.INFO("reference cache is larger than the limit, all other entries are in use");
+    }
+
+    protected long getSize(File file) {
+        if(!file.isDirectory())
+            return file.length();
+        long size = 0;
+        File[] files = file.listFiles();
+        if(files != null) {
+            for(File f : files)
+                size += getSize(f);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * finds runs of N in a part of a contig of the reference fasta, the .fai index
+ * gives the position of the part in the file so only that part is read
+ *
+ * @author ddecap
+ */
+public class ReferenceGaps {
+    protected FSDataInputStream in;
+    // length, offset, bases per line and bytes per line of every contig
+    protected HashMap<String, long[]> index;
+
+    public ReferenceGaps(FileSystem fs, String fasta) throws IOException {
+        index = new HashMap<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(new Path(fasta + ".fai"))));
+        try {
+            String line = reader.readLine();
+            while(line != null) {
+                String[] fields = line.split("\t");
+                index.put(fields[0], new long[]{Long.parseLong(fields[1]), Long.parseLong(fields[2]), 
+                    Long.parseLong(fields[3]), Long.parseLong(fields[4])});
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+        in = fs.open(new Path(fasta));
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    protected long getOffset(long[] fai, long position) {
+        return fai[1] + (position / fai[2]) * fai[3] + position % fai[2];
+    }
+
+    /**
+     * @return the start and end (1-based, end exclusive) of the longest run of N between from and to, 
+     * or null if there is none
+     */
+    public int[] getLongestNRun(String contig, int from, int to) throws IOException {
+        long[] fai = index.get(contig);
+        if(fai == null)
+            return null;
+        from = Math.max(1, from);
+        to = (int)Math.min(fai[0] + 1, to);
+        if(from >= to)
+            return null;
+        long startByte = getOffset(fai, from - 1);
+        byte[] data = new byte[(int)(getOffset(fai, to - 2) + 1 - startByte)];
+        in.readFully(startByte, data);
+        int[] longest = null;
+        int pos = from, runStart = -1;
+        for(byte b : data) {
+            if(b == '\n' || b == '\r')
+                continue;
+            if(b == 'N' || b == 'n') {
+                if(runStart < 0) 
+                    runStart = pos;
+            } else if(runStart >= 0) {
+                if(longest == null || pos - runStart > longest[1] - longest[0])
+                    longest = new int[]{runStart, pos};
+                runStart = -1;
+            }
+            pos++;
+        }
+        if(runStart >= 0 && (longest == null || pos - runStart > longest[1] - longest[0]))
+            longest = new int[]{runStart, pos};
+        return longest;
+    }
+}
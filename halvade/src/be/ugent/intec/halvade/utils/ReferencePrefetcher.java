@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ *
+ * @author ddecap
+ */
+public class ReferencePrefetcher extends Thread {
+
+    /*
+     * downloads the reference to local scratch in the background when the task starts
+     * and then reads the files the tool uses so they are in the page cache when the tool starts,
+     * the task only waits for the download when it needs the reference
+     */
+    public static final int BWA = 0;
+    public static final int BOWTIE2 = 1;
+    public static final int CUSHAW2 = 2;
+    public static final int GATK = 3;
+    protected static final int READ_SIZE = 1 << 20;
+    protected TaskInputOutputContext<?, ?, ?, ?> context;
+    protected int type;
+    protected String id;
+    protected volatile String ref;
+    protected volatile Exception error;
+    protected CountDownLatch downloaded;
+    protected long warmedBytes = 0;
+    protected long warmTime = 0;
+
+    public ReferencePrefetcher(TaskInputOutputContext<?, ?, ?, ?> context, int type, String id) {
+        this.context = context;
+        this.type = type;
+        this.id = id;
+        downloaded = new CountDownLatch(1);
+        setName("reference prefetcher");
+        setDaemon(true);
+    }
+
+    /**
+     * waits until the reference is on local scratch, the files can still be read into the page cache
+     * @return the fasta file of the reference
+     */
+    public String getReference() throws IOException, InterruptedException {
+        downloaded.await();
+        if(ref == null)
+            throw new IOException("failed to download the reference", error);
+        return ref;
+    }
+
+    /**
+     * stops reading the files into the page cache, a download is never interrupted
+     */
+    public void close() throws InterruptedException {
+        downloaded.await();
+        interrupt();
+        join();
+        context.getCounter(HalvadeCounters.TIME_REF_PREFETCH).increment(warmTime);
+        Logger.DEBUG("prefetched " + warmedBytes + " bytes of the reference in " + warmTime + " ms");
+    }
+
+    @Override
+    public void run() {
+        try {
+            ref = download();
+        } catch (IOException | URISyntaxException | RuntimeException ex) {
+            Logger.EXCEPTION(ex);
+            error = ex;
+        } finally {
+            downloaded.countDown();
+        }
+        if(ref == null)
+            return;
+        long start = System.currentTimeMillis();
+        String[] files = getFiles();
+        // the reference is the fasta file, the other files have the same base name
+        String refBase = ref.substring(0, ref.length() - HalvadeFileUtils.GATK_REF_FILES[0].length());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_SIZE);
+        for(int i = 0; i < files.length && !isInterrupted(); i++)
+            warm(refBase + files[i], buffer);
+        warmTime = System.currentTimeMillis() - start;
+    }
+
+    protected String download() throws IOException, URISyntaxException {
+        switch(type) {
+            case BWA: return HalvadeFileUtils.downloadBWAIndex(context, id);
+            case BOWTIE2: return HalvadeFileUtils.downloadBowtie2Index(context, id);
+            case CUSHAW2: return HalvadeFileUtils.downloadCushaw2Index(context, id);
+            default: return HalvadeFileUtils.downloadGATKIndex(context, id);
+        }
+    }
+
+    /**
+     * the files the tool reads
+     */
+    protected String[] getFiles() {
+        switch(type) {
+            case BWA: return getIndexFiles(HalvadeFileUtils.BWA_REF_FILES);
+            case BOWTIE2: return getIndexFiles(HalvadeFileUtils.BOWTIE2_REF_FILES);
+            case CUSHAW2: return getIndexFiles(HalvadeFileUtils.CUSHAW2_REF_FILES);
+            default: return HalvadeFileUtils.GATK_REF_FILES;
+        }
+    }
+
+    /**
+     * the aligners only read their index, not the fasta, fai and dict
+     */
+    protected String[] getIndexFiles(String[] files) {
+        ArrayList<String> index = new ArrayList<>();
+        for(String file : files) {
+            if(!Arrays.asList(HalvadeFileUtils.GATK_REF_FILES).contains(file))
+                index.add(file);
+        }
+        return index.toArray(new String[index.size()]);
+    }
+
+    /**
+     * reads the file with large sequential reads, the data is thrown away but stays in the page cache,
+     * reading instead of mapping the file keeps the virtual memory of the task low
+     */
+    protected void warm(String file, ByteBuffer buffer) {
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            int read = 0;
+            while(read >= 0 && !isInterrupted()) {
+                buffer.clear();
+                read = channel.read(buffer);
+                if(read > 0)
+                    warmedBytes += read;
+            }
+        } catch (IOException ex) {
+            if(!isInterrupted())
+                Logger.DEBUG("failed to prefetch " + file + ": " + ex.getLocalizedMessage());
+        }
+    }
+}
@@ -6,9 +6,11 @@
 
 package be.ugent.intec.halvade.utils;
 
+import be.ugent.intec.halvade.hadoop.datatypes.EncodedSAMRecordWritable;
 import be.ugent.intec.halvade.tools.QualityEncoding;
 import be.ugent.intec.halvade.tools.QualityException;
 import org.seqdoop.hadoop_bam.SAMRecordWritable;
+import java.io.IOException;
 import java.util.Iterator;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
@@ -20,7 +22,9 @@ import htsjdk.samtools.SAMRecord;
 public class SAMRecordIterator implements Iterator<SAMRecord> {
     protected Iterator<SAMRecordWritable> it;
     protected ChromosomeRange r;
-    protected SAMRecord sam = null;
+    // the Hadoop iterator reuses its value, keep a copy of the record that is returned next
+    protected EncodedSAMRecordWritable current, lookahead;
+    protected boolean hasLookahead = false;
     protected int reads = 0;
     protected int currentStart = -1, currentEnd = -1, currentChr = -1;
     protected String chrString = "";
@@ -43,55 +47,101 @@ public class SAMRecordIterator implements Iterator<SAMRecord> {
     }
     
     private void getFirstRecord() throws QualityException {
-        sam = null;
+        current = new EncodedSAMRecordWritable();
+        lookahead = new EncodedSAMRecordWritable();
+        hasLookahead = false;
         if(it.hasNext()) {
-            sam = it.next().get();
-            sam.setHeader(header);
-            requireFixQuality = (QualityEncoding.guessEncoding(sam) == QualityEncoding.QENCODING.ILLUMINA);
-            if (requireFixQuality) sam = QualityEncoding.fixMisencodedQuals(sam);
-            reads++;
-            currentStart = sam.getAlignmentStart();
-            currentEnd = sam.getAlignmentEnd();
-            currentChr = sam.getReferenceIndex();
-            chrString = sam.getReferenceName();
+            try {
+                readRecord(lookahead);
+                requireFixQuality = (QualityEncoding.guessEncoding(lookahead.getData(), 
+                        lookahead.getBaseQualitiesOffset(), lookahead.getReadLength()) == QualityEncoding.QENCODING.ILLUMINA);
+                if (requireFixQuality) fixQuality(lookahead);
+                reads++;
+                currentStart = lookahead.getAlignmentStart();
+                currentEnd = lookahead.getAlignmentEnd();
+                currentChr = lookahead.getReferenceIndex();
+                chrString = getReferenceName(currentChr);
+                hasLookahead = true;
+            } catch (IOException ex) {
+                throw new RuntimeException("failed to read the first record", ex);
+            }
         }
     }
     
     @Override
     public boolean hasNext() {
-        return sam != null;
+        return hasLookahead;
     }
 
     @Override
     public SAMRecord next() {
-        SAMRecord tmp = sam;
+        SAMRecord sam = nextEncoded().get();
+        sam.setHeader(header);
+        return sam;
+    }
+
+    /**
+     * returns the next record without decoding it, the returned object 
+     * is reused and only valid until the following call to next
+     */
+    public EncodedSAMRecordWritable nextEncoded() {
+        EncodedSAMRecordWritable tmp = lookahead;
+        lookahead = current;
+        current = tmp;
+        hasLookahead = false;
         if (it.hasNext()) {
             try {
-                sam = it.next().get();
-                sam.setHeader(header);
-                if (requireFixQuality) sam = QualityEncoding.fixMisencodedQuals(sam);
+                readRecord(lookahead);
+                if (requireFixQuality) fixQuality(lookahead);
                 reads++;
-                if(sam.getReferenceIndex() == currentChr && sam.getAlignmentStart() <= currentEnd + INTERVAL_OVERLAP){
-                    if (sam.getAlignmentEnd() > currentEnd) {
-                        currentEnd = sam.getAlignmentEnd();
+                int start = lookahead.getAlignmentStart();
+                int end = lookahead.getAlignmentEnd();
+                int chr = lookahead.getReferenceIndex();
+                if(chr == currentChr && start <= currentEnd + INTERVAL_OVERLAP){
+                    if (end > currentEnd) {
+                        currentEnd = end;
                     }
                 } else {
                     // new region to start here, add current!
                     r.addRange(chrString, currentStart, currentEnd);
-                    currentStart = sam.getAlignmentStart();
-                    currentEnd = sam.getAlignmentEnd();
-                    currentChr = sam.getReferenceIndex();
-                    chrString = sam.getReferenceName();
+                    currentStart = start;
+                    currentEnd = end;
+                    currentChr = chr;
+                    chrString = getReferenceName(chr);
                 }
+                hasLookahead = true;
+            } catch (IOException ex) {
+                // stopping here would silently drop the rest of the records
+                throw new RuntimeException("failed to read record " + reads, ex);
             } catch (QualityException ex) {
-                Logger.EXCEPTION(ex);
-                sam = null;
+                throw new RuntimeException(ex);
             }
         } else {
             r.addRange(chrString, currentStart, currentEnd);
-            sam = null;
         }
-        return tmp;
+        return current;
+    }
+    
+    protected void readRecord(EncodedSAMRecordWritable record) throws IOException {
+        SAMRecordWritable value = it.next();
+        if(value instanceof EncodedSAMRecordWritable) {
+            record.set((EncodedSAMRecordWritable)value);
+        } else {
+            SAMRecord sam = value.get();
+            sam.setHeader(header);
+            record.set(sam);
+        }
+    }
+    
+    protected void fixQuality(EncodedSAMRecordWritable record) throws QualityException, IOException {
+        QualityEncoding.fixMisencodedQuals(record.getData(), record.getBaseQualitiesOffset(), record.getReadLength());
+        record.invalidateRecord();
+    }
+    
+    protected String getReferenceName(int index) {
+        if(index < 0)
+            return SAMRecord.NO_ALIGNMENT_REFERENCE_NAME;
+        return header.getSequence(index).getSequenceName();
     }
 
     @Override
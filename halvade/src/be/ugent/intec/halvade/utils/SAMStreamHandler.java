@@ -19,14 +19,24 @@ package be.ugent.intec.halvade.utils;
 
 import org.seqdoop.hadoop_bam.SAMRecordWritable;
 import be.ugent.intec.halvade.hadoop.datatypes.ChromosomeRegion;
+import be.ugent.intec.halvade.hadoop.mapreduce.HalvadeCounters;
 import be.ugent.intec.halvade.tools.AlignerInstance;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import htsjdk.samtools.*;
 import htsjdk.samtools.util.BufferedLineReader;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Mapper.Context;
 import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 
@@ -34,13 +44,19 @@ import org.apache.hadoop.mapreduce.TaskInputOutputContext;
  *
  * @author ddecap
  */
-public class SAMStreamHandler extends Thread {
+public class SAMStreamHandler extends StreamHandler {
 
     /*
      * reads input from an outputstream (stdout from a process)
      * writes every input from the stream to the output of hadoop
      * which will be sorted and processed further
+     * 
+     * this thread reads the lines in batches, a pool of threads parses the 
+     * batches and finds the region keys and one emitter thread writes the 
+     * records to the context in the order they were read
      */
+    protected static final int BATCH_SIZE = 1024;
+    protected static final int QUEUED_BATCHES_PER_THREAD = 4;
     InputStream is;
     SAMRecordFactory samRecordFactory;
     BufferedLineReader mReader;
@@ -49,13 +65,17 @@ public class SAMStreamHandler extends Thread {
     File mFile;
     ValidationStringency validationStringency;
     SamReader mParentReader;
-    SAMLineParser parser;
+    ThreadLocal<SAMLineParser> parser;
     TaskInputOutputContext<LongWritable, Text, ChromosomeRegion, SAMRecordWritable> context;
-    SAMRecordWritable writableRecord;
-    ChromosomeRegion writableRegion;
     AlignerInstance instance;
     boolean isPaired = true;
     protected boolean useCompact;
+    protected int parseThreads;
+    protected BlockingQueue<Future<SAMBatch>> batches;
+    protected int maxQueueDepth = 0;
+    protected long readerStallTime = 0;
+    protected long emitterStallTime = 0;
+    protected int count = 0;
 
     public SAMStreamHandler(AlignerInstance instance, Context context, boolean useCompact) {
         this.is = instance.getSTDOUTStream();
@@ -69,43 +89,164 @@ public class SAMStreamHandler extends Thread {
         samRecordFactory = new DefaultSAMRecordFactory();
         this.context = context;
         isPaired = HalvadeConf.getIsPaired(context.getConfiguration());
+        parseThreads = HalvadeConf.getSamParseThreads(context.getConfiguration());
+        batches = new ArrayBlockingQueue<>(QUEUED_BATCHES_PER_THREAD * parseThreads);
+        setName("SAM stream handler");
     }
     
     @Override
     public void run() {
-        // get header first 
-        SAMTextHeaderCodec headerCodec = new SAMTextHeaderCodec();
-        headerCodec.setValidationStringency(validationStringency);
-        if(mFileHeader == null) {
-            mFileHeader = headerCodec.decode(mReader, mFile == null ? null : mFile.toString());
-            instance.setFileHeader(mFileHeader);
-        } else {
-            mFileHeader = instance.getFileHeader();
-        }
-        parser = new SAMLineParser(samRecordFactory, validationStringency, mFileHeader, mParentReader, mFile);
-        // now process each read...
-        int count = 0;
-        mCurrentLine = mReader.readLine();
+        ExecutorService parsers = Executors.newFixedThreadPool(parseThreads);
+        Thread emitter = new Thread() {
+            @Override
+            public void run() {
+                emitRecords();
+            }
+        };
+        emitter.start();
         try {
+            // get header first 
+            SAMTextHeaderCodec headerCodec = new SAMTextHeaderCodec();
+            headerCodec.setValidationStringency(validationStringency);
+            if(mFileHeader == null) {
+                mFileHeader = headerCodec.decode(mReader, mFile == null ? null : mFile.toString());
+                instance.setFileHeader(mFileHeader);
+            } else {
+                mFileHeader = instance.getFileHeader();
+            }
+            // SAMLineParser isn't thread safe, every parse thread gets its own
+            parser = new ThreadLocal<SAMLineParser>() {
+                @Override
+                protected SAMLineParser initialValue() {
+                    return new SAMLineParser(samRecordFactory, validationStringency, mFileHeader, mParentReader, mFile);
+                }
+            };
+            // now process each read...
+            mCurrentLine = mReader.readLine();
             while (mCurrentLine != null) {
-                SAMRecord samrecord = parser.parseLine(mCurrentLine, mReader.getLineNumber());
-                // only write mapped records as output
-                // paired or unpaired ?? need to know to check for boundaries
-                
-                if(isPaired) count += instance.writePairedSAMRecordToContext(samrecord, useCompact);
-                else count += instance.writeSAMRecordToContext(samrecord, useCompact);
-                //advance line even if bad line
-                advanceLine();
+                SAMBatch batch = new SAMBatch(mReader.getLineNumber());
+                while (mCurrentLine != null && batch.size < BATCH_SIZE) {
+                    batch.lines[batch.size++] = mCurrentLine;
+                    //advance line even if bad line
+                    advanceLine();
+                }
+                queueBatch(parsers.submit(batch));
             }
-        } catch (IOException | InterruptedException ex) {
-            Logger.EXCEPTION(ex);
+        } catch (InterruptedException | RuntimeException ex) {
+            setError(ex);
+        } finally {
+            // an empty result tells the emitter all batches are queued, 
+            // the emitter takes batches until it gets this one so it never blocks
+            FutureTask<SAMBatch> end = new FutureTask<>(new Callable<SAMBatch>() {
+                @Override
+                public SAMBatch call() {
+                    return null;
+                }
+            });
+            end.run();
+            try {
+                queueBatch(end);
+                emitter.join();
+            } catch (InterruptedException ex) {
+                setError(ex);
+                emitter.interrupt();
+            }
+            parsers.shutdownNow();
         }
+        context.getCounter(HalvadeCounters.TIME_SAM_READER_STALL).increment(readerStallTime);
+        context.getCounter(HalvadeCounters.TIME_SAM_EMITTER_STALL).increment(emitterStallTime);
+        Counter maxDepth = context.getCounter(HalvadeCounters.MAX_SAM_QUEUE_DEPTH);
+        if(maxDepth.getValue() < maxQueueDepth) 
+            maxDepth.setValue(maxQueueDepth);
         Logger.DEBUG("SAMstream counts " + count + " records");
     }
     
+    protected void queueBatch(Future<SAMBatch> batch) throws InterruptedException {
+        if(!batches.offer(batch)) {
+            // all parse threads are busy and the emitter is behind
+            long start = System.currentTimeMillis();
+            batches.put(batch);
+            readerStallTime += System.currentTimeMillis() - start;
+        }
+        int depth = batches.size();
+        if(depth > maxQueueDepth) 
+            maxQueueDepth = depth;
+    }
+    
+    protected void emitRecords() {
+        // after an error the batches are still taken so the reader doesn't block, 
+        // the error fails the task when the aligner is closed
+        boolean failed = false;
+        try {
+            while (true) {
+                Future<SAMBatch> next = batches.take();
+                SAMBatch batch;
+                try {
+                    if(next.isDone()) {
+                        batch = next.get();
+                    } else {
+                        long start = System.currentTimeMillis();
+                        batch = next.get();
+                        emitterStallTime += System.currentTimeMillis() - start;
+                    }
+                } catch (ExecutionException ex) {
+                    setError(ex);
+                    failed = true;
+                    continue;
+                }
+                if(batch == null) 
+                    break;
+                if(failed) 
+                    continue;
+                try {
+                    for(int i = 0; i < batch.size; i++) {
+                        count += instance.writeSAMRecordToContext(batch.records[i], batch.keys[i], batch.keyCounts[i], useCompact);
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    setError(ex);
+                    failed = true;
+                }
+            }
+        } catch (InterruptedException ex) {
+            setError(ex);
+        }
+    }
+    
     private String advanceLine()
     {
         mCurrentLine = mReader.readLine();
         return mCurrentLine;
     }
+    
+    protected class SAMBatch implements Callable<SAMBatch> {
+        protected int firstLine;
+        protected int size;
+        protected String[] lines;
+        protected SAMRecord[] records;
+        protected int[][] keys;
+        protected int[] keyCounts;
+
+        public SAMBatch(int firstLine) {
+            this.firstLine = firstLine;
+            this.size = 0;
+            this.lines = new String[BATCH_SIZE];
+        }
+
+        @Override
+        public SAMBatch call() {
+            SAMLineParser lineParser = parser.get();
+            records = new SAMRecord[size];
+            keys = new int[size][ChromosomeSplitter.MAX_KEYS];
+            keyCounts = new int[size];
+            for(int i = 0; i < size; i++) {
+                records[i] = lineParser.parseLine(lines[i], firstLine + i);
+                lines[i] = null;
+                // only write mapped records as output
+                // paired or unpaired ?? need to know to check for boundaries
+                if(isPaired) keyCounts[i] = instance.getPairedRegions(records[i], keys[i]);
+                else keyCounts[i] = instance.getRegions(records[i], keys[i]);
+            }
+            return this;
+        }
+    }
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.TIPStatus;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskReport;
+import org.apache.hadoop.mapreduce.TaskType;
+
+/**
+ *
+ * @author ddecap
+ */
+public abstract class StragglerMonitor extends Thread {
+
+    /*
+     * looks for reducers that run much longer than the others once half of the reducers are done,
+     * speculative execution would only run the same regions again on another node.
+     * the regions of the reducers that run longer than factor times the median reducer are given 
+     * to a follow-up job at once, which reads them from the map output that the mappers kept. 
+     * after the follow-up job is submitted these reducers are marked as replanned and killed, 
+     * their next attempt skips all keys and finishes at once.
+     */
+    protected static final long POLL_MS = 30000;
+    protected static final double MIN_FINISHED = 0.5;
+    protected Job job;
+    protected double factor;
+    protected List<Integer> stragglers;
+    protected Job replanJob;
+
+    public StragglerMonitor(Job job, double factor) {
+        this.job = job;
+        this.factor = factor;
+        stragglers = new ArrayList<>();
+        setName("straggler monitor");
+        setDaemon(true);
+    }
+    
+    /**
+     * makes the job that processes the regions of the given reducers in smaller parts
+     * @return null if there is nothing to replan
+     */
+    protected abstract Job createReplanJob(List<Integer> reducers) throws IOException, URISyntaxException, InterruptedException;
+
+    /**
+     * the follow-up job, only valid after this thread has finished
+     * @return null if no reducer was replanned
+     */
+    public Job getReplanJob() {
+        return replanJob;
+    }
+
+    /**
+     * removes the output of every attempt of the replanned reducers once the follow-up job is done,
+     * a reducer can have finished while it was killed, its regions are then in the follow-up output as well
+     */
+    public void removeStragglerOutput() throws IOException, URISyntaxException {
+        String outdir = HalvadeConf.getOutDir(job.getConfiguration());
+        FileSystem fs = FileSystem.get(new URI(outdir), job.getConfiguration());
+        for(int reducer : stragglers) {
+            String task = new TaskAttemptID(job.getJobID().getJtIdentifier(), job.getJobID().getId(), TaskType.REDUCE, reducer, 0)
+                    .getTaskID().toString().replaceFirst("^task_", "attempt_");
+            FileStatus[] files = fs.globStatus(new Path(outdir + task + "_*"));
+            if(files == null)
+                continue;
+            for(FileStatus file : files) {
+                Logger.DEBUG("removing " + file.getPath() + " of replanned reducer " + reducer);
+                fs.delete(file.getPath(), false);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while(!job.isComplete()) {
+                Thread.sleep(POLL_MS);
+                if(job.mapProgress() == 1.0f) {
+                    List<TaskReport> slow = findStragglers();
+                    if(!slow.isEmpty()) {
+                        replan(slow);
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            // the job is finished
+        } catch (IOException | URISyntaxException | ClassNotFoundException | RuntimeException ex) {
+            // the reducers are only killed once the follow-up job is submitted
+            Logger.EXCEPTION(ex);
+        }
+    }
+
+    /**
+     * the runtime of a reducer starts when the last map task finishes, before that it only copies map output
+     */
+    protected List<TaskReport> findStragglers() throws IOException, InterruptedException {
+        long mapEnd = 0;
+        for(TaskReport map : job.getTaskReports(TaskType.MAP))
+            mapEnd = Math.max(mapEnd, map.getFinishTime());
+        TaskReport[] reduces = job.getTaskReports(TaskType.REDUCE);
+        List<Long> finished = new ArrayList<>();
+        for(TaskReport reduce : reduces) {
+            if(reduce.getCurrentStatus() == TIPStatus.COMPLETE)
+                finished.add(reduce.getFinishTime() - Math.max(reduce.getStartTime(), mapEnd));
+        }
+        List<TaskReport> slow = new ArrayList<>();
+        if(finished.isEmpty() || finished.size() < reduces.length * MIN_FINISHED)
+            return slow;
+        Collections.sort(finished);
+        long median = finished.get(finished.size() / 2);
+        long now = System.currentTimeMillis();
+        for(TaskReport reduce : reduces) {
+            long elapsed = now - Math.max(reduce.getStartTime(), mapEnd);
+            if(reduce.getCurrentStatus() == TIPStatus.RUNNING && elapsed > factor * median) {
+                Logger.INFO("reducer " + reduce.getTaskID().getId() + " runs " + elapsed / 1000 
+                        + " s, the median reducer " + median / 1000 + " s, its regions are replanned");
+                slow.add(reduce);
+            }
+        }
+        return slow;
+    }
+
+    /**
+     * the follow-up job is started before the reducers are killed, if it can't be started the reducers go on
+     */
+    protected void replan(List<TaskReport> slow) throws IOException, URISyntaxException, InterruptedException, ClassNotFoundException {
+        String jobId = job.getJobID().toString();
+        List<Integer> reducers = new ArrayList<>();
+        for(TaskReport reduce : slow)
+            reducers.add(reduce.getTaskID().getId());
+        Collections.sort(reducers);
+        Job replan = createReplanJob(reducers);
+        if(replan == null)
+            return;
+        replan.submit();
+        replanJob = replan;
+        stragglers = reducers;
+        for(TaskReport reduce : slow) {
+            // mark before killing so the next attempt skips the regions
+            HalvadeConf.setReducerReplanned(job.getConfiguration(), jobId, reduce.getTaskID().getId());
+            for(TaskAttemptID attempt : reduce.getRunningTaskAttemptIds())
+                job.killTask(attempt, false);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package be.ugent.intec.halvade.utils;
+
+import java.io.IOException;
+
+/**
+ * a thread that reads the output of the aligner, the first error is kept 
+ * and thrown when the aligner is closed so the task fails instead of losing reads
+ *
+ * @author ddecap
+ */
+public abstract class StreamHandler extends Thread {
+    protected volatile Exception error;
+
+    protected void setError(Exception ex) {
+        Logger.EXCEPTION(ex);
+        if(error == null)
+            error = ex;
+    }
+
+    /**
+     * waits until all output is read
+     */
+    public void finish() throws InterruptedException, IOException {
+        join();
+        if(error != null)
+            throw new IOException(getName() + " failed", error);
+    }
+}
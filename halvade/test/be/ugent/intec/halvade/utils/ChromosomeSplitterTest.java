@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2014 ddecap
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package be.ugent.intec.halvade.utils;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author ddecap
+ */
+public class ChromosomeSplitterTest {
+    protected File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("halvade-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        HalvadeFileUtils.deleteDir(dir);
+    }
+
+    protected SAMSequenceDictionary getDictionary(int... lengths) {
+        SAMSequenceDictionary dict = new SAMSequenceDictionary();
+        for(int i = 0; i < lengths.length; i++)
+            dict.addSequence(new SAMSequenceRecord("chr" + (i + 1), lengths[i]));
+        return dict;
+    }
+
+    @Test
+    public void testReducerTableAssignsEveryKey() throws IOException, URISyntaxException {
+        ChromosomeSplitter splitter = new ChromosomeSplitter(getDictionary(248956422, 242193529, 198295559, 50000000, 1000000), 40);
+        splitter.makeReducerTable(10, null);
+        long[] cost = splitter.getKeyCosts(null);
+        assertEquals(cost.length, splitter.reducerTable.length);
+        long[] load = new long[10];
+        long largest = 0;
+        for(int key = 0; key < cost.length; key++) {
+            int reducer = ChromosomeSplitter.getReducer(splitter.reducerTable, key, 10);
+            assertTrue(reducer >= 0 && reducer < 10);
+            load[reducer] += cost[key];
+            largest = Math.max(largest, cost[key]);
+        }
+        Arrays.sort(load);
+        assertTrue("every reducer gets a key", load[0] > 0);
+        // the most expensive key always goes to the reducer with the lowest load
+        assertTrue("load " + Arrays.toString(load), load[9] - load[0] <= largest);
+    }
+
+    @Test
+    public void testReducerTableLongestFirst() throws IOException, URISyntaxException {
+        ChromosomeSplitter splitter = new ChromosomeSplitter(getDictionary(1000000, 500000, 300000, 200000), 4);
+        splitter.makeReducerTable(2, null);
+        long[] cost = splitter.getKeyCosts(null);
+        int longest = 0;
+        for(int key = 1; key < cost.length; key++)
+            if(cost[key] > cost[longest]) longest = key;
+        // ties between empty reducers go to the lowest reducer number
+        assertEquals(0, splitter.reducerTable[longest]);
+    }
+
+    @Test
+    public void testReducerOfUnknownKey() {
+        int[] table = {3, 1, 0};
+        assertEquals(1, ChromosomeSplitter.getReducer(table, 1, 4));
+        assertEquals(5 % 4, ChromosomeSplitter.getReducer(table, 5, 4));
+        // a table made for more reducers than the job has
+        assertEquals(0, ChromosomeSplitter.getReducer(table, 0, 2));
+        assertEquals(2, ChromosomeSplitter.getReducer(new int[0], 2, 4));
+    }
+
+    /**
+     * adds the read counts of a contig to the read count file, the counts are given per bin
+     */
+    protected String writeReadCounts(String contig, int binSize, long... counts) throws IOException {
+        File file = new File(dir, "reads.counts");
+        try (FileWriter out = new FileWriter(file, true)) {
+            for(int i = 0; i < counts.length; i++)
+                out.write(contig + ":" + i * binSize + "-" + (i + 1) * binSize + "\t" + counts[i] + "\n");
+        }
+        return file.getAbsolutePath();
+    }
+
+    @Test
+    public void testSnapBoundaryWithoutInformation() throws IOException, URISyntaxException {
+        ChromosomeSplitter splitter = new ChromosomeSplitter(getDictionary(100000, 50000), 3);
+        splitter.snapBoundaries(null, null, 0.5);
+        assertEquals(50001, splitter.indexEnd[0][0]);
+        assertEquals(50001, splitter.indexStart[0][1]);
+    }
+
+    @Test
+    public void testBoundaries() throws IOException, URISyntaxException {
+        ChromosomeSplitter splitter = new ChromosomeSplitter(getDictionary(100000, 50000), 3);
+        assertEquals(1, splitter.getBoundaryCount());
+        assertEquals(0, splitter.getBoundary(0, 49950, 50050));
+        assertEquals(-1, splitter.getBoundary(0, 100, 200));
+        assertEquals(-1, splitter.getBoundary(0, 60000, 60100));
+        assertEquals(-1, splitter.getBoundary(1, 100, 200));
+        assertEquals("chr1:50002 (regions 0 and 1)", splitter.getBoundaryName(0));
+    }
+
+    @Test
+    public void testSnapBoundaryToFewestReads() throws IOException, URISyntaxException {
+        ChromosomeSplitter splitter = new ChromosomeSplitter(getDictionary(100000, 50000), 3);
+        String counts = writeReadCounts("chr1", 10000, 100, 100, 100, 100, 100, 100, 5, 100, 100, 100);
+        splitter.snapBoundaries(null, counts, 0.5);
+        assertEquals(60000, splitter.indexEnd[0][0]);
+        assertEquals(60000, splitter.indexStart[0][1]);
+        int[] keys = new int[ChromosomeSplitter.MAX_KEYS];
+        assertEquals(1, splitter.getRegions(0, 55000, 55100, -1, 0, 0, keys));
+        assertEquals(splitter.indexKey[0][0], keys[0]);
+        // the bin with the fewest reads is too far for a small tolerance
+        splitter = new ChromosomeSplitter(getDictionary(100000, 50000), 3);
+        splitter.snapBoundaries(null, counts, 0.05);
+        assertEquals(50000, splitter.indexEnd[0][0]);
+    }
+
+    protected List<ChromosomeSplitter.BedRegion> getRegions(ChromosomeSplitter splitter, String contig) {
+        List<ChromosomeSplitter.BedRegion> regions = new ArrayList<>();
+        for(ChromosomeSplitter.BedRegion region : splitter.regions)
+            if(region.contig.equals(contig))
+                regions.add(region);
+        Collections.sort(regions, splitter.new BedRegionStartComparator());
+        return regions;
+    }
+
+    @Test
+    public void testSplitHotRegions() throws IOException, URISyntaxException {
+        ChromosomeSplitter splitter = new ChromosomeSplitter(getDictionary(1000000, 100000), 11);
+        long[] chr2 = new long[100];
+        Arrays.fill(chr2, 10);
+        Arrays.fill(chr2, 0, 10, 20000);
+        long[] chr1 = new long[1000];
+        Arrays.fill(chr1, 10);
+        writeReadCounts("chr1", 1000, chr1);
+        String counts = writeReadCounts("chr2", 1000, chr2);
+        int keys = splitter.getKeyCosts(counts).length;
+        List<ChromosomeSplitter.BedRegion> before = getRegions(splitter, "chr2");
+        assertEquals(1, before.size());
+        int start = before.get(0).start, end = before.get(0).end;
+
+        int added = splitter.splitHotRegions(counts, 2, 500);
+        assertTrue(added > 0);
+        assertEquals(keys + added, splitter.getKeyCosts(counts).length);
+        // the parts cover the region without gaps and every part has a new key
+        List<ChromosomeSplitter.BedRegion> after = getRegions(splitter, "chr2");
+        assertEquals(added + 1, after.size());
+        assertEquals(start, after.get(0).start);
+        assertEquals(end, after.get(after.size() - 1).end);
+        Set<Integer> partKeys = new HashSet<>();
+        for(int i = 0; i < after.size(); i++) {
+            if(i > 0)
+                assertEquals(after.get(i - 1).end, after.get(i).start);
+            assertEquals(500, after.get(i).overlap);
+            assertTrue(after.get(i).end - after.get(i).start >= ChromosomeSplitter.MIN_HOT_SPLIT_LENGTH);
+            partKeys.add(after.get(i).key);
+        }
+        assertEquals(after.size(), partKeys.size());
+        // the cuts follow the reads, which are all in the first 10000 bases
+        assertTrue(after.get(after.size() - 2).end <= 10000);
+        for(ChromosomeSplitter.BedRegion region : getRegions(splitter, "chr1"))
+            assertEquals(0, region.overlap);
+    }
+
+    @Test
+    public void testCuts() throws IOException, URISyntaxException {
+        ChromosomeSplitter splitter = new ChromosomeSplitter(getDictionary(1000000, 100000), 11);
+        ChromosomeSplitter.BedRegion region = getRegions(splitter, "chr2").get(0);
+        long[] chr2 = new long[100];
+        Arrays.fill(chr2, 0, 10, 1000);
+        String counts = writeReadCounts("chr2", 1000, chr2);
+        List<ChromosomeSplitter.BedRegion> bins = new ArrayList<>();
+        long cost = splitter.getRegionCost(region, splitter.makeRegionListFromFile(counts), bins);
+        assertEquals(10000, cost);
+        assertEquals(Arrays.asList(5000), splitter.getCuts(region, bins, cost, 2, 0));
+        assertEquals(Arrays.asList(3000, 5000, 8000), splitter.getCuts(region, bins, cost, 4, 0));
+        // equal lengths if the bins are too large for the number of parts
+        int length = (region.end - region.start) / 4;
+        List<Integer> cuts = splitter.getCuts(region, new ArrayList<ChromosomeSplitter.BedRegion>(), region.end - region.start, 4, 0);
+        assertEquals(Arrays.asList(region.start + length, region.start + 2 * length, region.start + 3 * length), cuts);
+    }
+
+    @Test
+    public void testCutsKeepTwiceTheOverlap() throws IOException, URISyntaxException {
+        ChromosomeSplitter splitter = new ChromosomeSplitter(getDictionary(1000000, 100000), 11);
+        ChromosomeSplitter.BedRegion region = getRegions(splitter, "chr2").get(0);
+        long[] chr2 = new long[100];
+        Arrays.fill(chr2, 0, 10, 1000);
+        String counts = writeReadCounts("chr2", 1000, chr2);
+        List<ChromosomeSplitter.BedRegion> bins = new ArrayList<>();
+        long cost = splitter.getRegionCost(region, splitter.makeRegionListFromFile(counts), bins);
+        assertEquals(Arrays.asList(3000, 6000, 9000), splitter.getCuts(region, bins, cost, 4, 1500));
+        // the reads are in the first 10000 bases, the later cuts move out of them
+        assertEquals(Arrays.asList(5000, 10000, 15000), splitter.getCuts(region, bins, cost, 4, 2500));
+    }
+
+    @Test
+    public void testOwnedRange() throws IOException, URISyntaxException {
+        ChromosomeSplitter splitter = new ChromosomeSplitter(getDictionary(1000000, 100000), 11);
+        long[] chr2 = new long[100];
+        Arrays.fill(chr2, 0, 100, 10000);
+        long[] chr1 = new long[1000];
+        Arrays.fill(chr1, 10);
+        writeReadCounts("chr1", 1000, chr1);
+        String counts = writeReadCounts("chr2", 1000, chr2);
+        splitter.splitHotRegions(counts, 2, 500);
+        List<ChromosomeSplitter.BedRegion> parts = getRegions(splitter, "chr2");
+        ChromosomeSplitter.BedRegion b = parts.get(1);
+        assertTrue(splitter.hasOverlap(b.key));
+        assertFalse(splitter.hasOverlap(getRegions(splitter, "chr1").get(0).key));
+
+        // the reads of b reach into the overlap margins of both neighbours
+        ChromosomeRange range = new ChromosomeRange();
+        range.addRange("chr2", b.start - 400, b.end + 400);
+        ChromosomeRange owned = splitter.getOwnedRange(b.key, range);
+        assertEquals(b.start, owned.getAlignmentStart());
+        assertEquals(b.end - 1, owned.getAlignmentEnd());
+        // reads only in the margin don't leave anything to call
+        range = new ChromosomeRange();
+        range.addRange("chr2", b.end, b.end + 400);
+        assertTrue(splitter.getOwnedRange(b.key, range).isEmpty());
+    }
+
+    @Test
+    public void testOverlapKeys() throws IOException, URISyntaxException {
+        ChromosomeSplitter splitter = new ChromosomeSplitter(getDictionary(1000000, 100000), 11);
+        long[] chr2 = new long[100];
+        Arrays.fill(chr2, 0, 100, 10000);
+        long[] chr1 = new long[1000];
+        Arrays.fill(chr1, 10);
+        writeReadCounts("chr1", 1000, chr1);
+        String counts = writeReadCounts("chr2", 1000, chr2);
+        splitter.splitHotRegions(counts, 2, 500);
+        List<ChromosomeSplitter.BedRegion> parts = getRegions(splitter, "chr2");
+        assertTrue(parts.size() >= 3);
+        ChromosomeSplitter.BedRegion a = parts.get(0), b = parts.get(1), c = parts.get(2);
+        int[] keys = new int[ChromosomeSplitter.MAX_KEYS];
+
+        // far from a cut
+        assertEquals(1, splitter.getRegions(1, a.start + 100, a.start + 200, -1, 0, 0, keys));
+        assertEquals(a.key, keys[0]);
+        // in the overlap margin of the next region
+        assertEquals(2, splitter.getRegions(1, a.end - 300, a.end - 200, -1, 0, 0, keys));
+        assertEquals(new HashSet<>(Arrays.asList(a.key, b.key)), new HashSet<>(Arrays.asList(keys[0], keys[1])));
+        // in the overlap margin of the previous region
+        assertEquals(2, splitter.getRegions(1, b.start + 200, b.start + 300, -1, 0, 0, keys));
+        // both mates on a cut
+        int count = splitter.getRegions(1, a.end - 300, a.end - 200, 1, b.end - 300, b.end - 200, keys);
+        assertEquals(3, count);
+        assertEquals(new HashSet<>(Arrays.asList(a.key, b.key, c.key)), 
+                new HashSet<>(Arrays.asList(keys[0], keys[1], keys[2])));
+        // a read only belongs to the region of its start
+        assertEquals(a.key, splitter.getPrimaryRegion(1, a.end - 1));
+        assertEquals(b.key, splitter.getPrimaryRegion(1, b.start));
+        assertEquals(-1, splitter.getPrimaryRegion(5, 100));
+    }
+
+    @Test
+    public void testReplanRegions() throws IOException, URISyntaxException {
+        ChromosomeSplitter splitter = new ChromosomeSplitter(getDictionary(1000000, 500000), 6);
+        splitter.makeReducerTable(3, null);
+        List<ChromosomeSplitter.BedRegion> straggler = new ArrayList<>();
+        for(ChromosomeSplitter.BedRegion region : splitter.regions) {
+            if(ChromosomeSplitter.getReducer(splitter.reducerTable, region.key, 3) == 1) 
+                straggler.add(region);
+        }
+        assertFalse(straggler.isEmpty());
+
+        int regions = splitter.replanRegions(Arrays.asList(1), 3, 8, 500, null);
+        assertEquals(straggler.size() * 8, regions);
+        assertEquals(regions, splitter.getRegionCount());
+        assertNull(splitter.reducerTable);
+        // only the regions of the straggler are left, each in 8 parts with new keys
+        Set<Integer> keys = new HashSet<>();
+        for(ChromosomeSplitter.BedRegion region : straggler) {
+            List<ChromosomeSplitter.BedRegion> parts = new ArrayList<>();
+            for(ChromosomeSplitter.BedRegion part : getRegions(splitter, region.contig))
+                if(part.start >= region.start && part.end <= region.end)
+                    parts.add(part);
+            assertEquals(8, parts.size());
+            assertEquals(region.start, parts.get(0).start);
+            assertEquals(region.end, parts.get(7).end);
+            for(ChromosomeSplitter.BedRegion part : parts) {
+                assertEquals(500, part.overlap);
+                keys.add(part.key);
+            }
+        }
+        assertEquals(regions, keys.size());
+        for(int key : keys)
+            assertTrue(key >= 0 && key < regions);
+    }
+
+    @Test
+    public void testReplanSmallRegion() throws IOException, URISyntaxException {
+        ChromosomeSplitter splitter = new ChromosomeSplitter(getDictionary(100000, 1500), 2);
+        splitter.makeReducerTable(2, null);
+        int reducer = -1;
+        for(ChromosomeSplitter.BedRegion region : splitter.regions)
+            if(region.contig.equals("chr2"))
+                reducer = ChromosomeSplitter.getReducer(splitter.reducerTable, region.key, 2);
+        splitter.replanRegions(Arrays.asList(reducer), 2, 8, 500, null);
+        // a region shorter than two overlap margins is not split
+        assertEquals(1, getRegions(splitter, "chr2").size());
+        int[] keys = new int[ChromosomeSplitter.MAX_KEYS];
+        assertEquals(1, splitter.getRegions(1, 100, 200, -1, 0, 0, keys));
+    }
+}